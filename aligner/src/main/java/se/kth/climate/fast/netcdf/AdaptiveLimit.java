@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.typesafe.config.Config;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds how many workers of a stage are active at once, adapting the bound
+ * to the throughput the stage achieves (AIMD).
+ * <p>
+ * Workers call {@link #acquire()} before and {@link #release(long, boolean)}
+ * after each unit of work. At the end of every window of
+ * {@code nchdfs.adaptiveWindow}, in which all permits were in use at some
+ * point, the limit grows by one, unless the bytes per second dropped by more than
+ * {@code nchdfs.adaptiveTolerance} compared to the previous window or a
+ * worker failed, in which case it is halved. Windows in which the stage
+ * wasn't saturated leave the limit alone, since they say nothing about how
+ * more concurrency would do. The limit stays between one and the number of
+ * threads the stage has.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class AdaptiveLimit {
+
+    static final Logger LOG = LoggerFactory.getLogger(AdaptiveLimit.class);
+
+    private final String name;
+    private final int max;
+    private final long windowNanos;
+    private final double tolerance;
+    private final boolean enabled;
+    private final LongSupplier clock;
+    private int limit;
+    private int active = 0;
+    private long windowStart;
+    private long windowBytes = 0;
+    private boolean saturated = false;
+    private boolean failed = false;
+    private double lastRate = -1;
+
+    private AdaptiveLimit(String name, int max, long windowNanos, double tolerance, boolean enabled) {
+        this(name, max, windowNanos, tolerance, enabled, System::nanoTime);
+    }
+
+    /**
+     * An enabled limit that reads the time from {@code clock}, for tests.
+     */
+    AdaptiveLimit(String name, int max, long windowNanos, double tolerance, LongSupplier clock) {
+        this(name, max, windowNanos, tolerance, true, clock);
+        this.limit = (max + 1) / 2;
+    }
+
+    private AdaptiveLimit(String name, int max, long windowNanos, double tolerance, boolean enabled, LongSupplier clock) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Need at least one worker for " + name + ", got " + max);
+        }
+        this.name = name;
+        this.max = max;
+        this.windowNanos = windowNanos;
+        this.tolerance = tolerance;
+        this.enabled = enabled;
+        this.clock = clock;
+        this.limit = max;
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * A limit that always admits all {@code max} workers.
+     *
+     * @param name
+     * @param max
+     * @return
+     */
+    public static AdaptiveLimit fixed(String name, int max) {
+        return new AdaptiveLimit(name, max, Long.MAX_VALUE, 0, false);
+    }
+
+    /**
+     * @param conf
+     * @param name stage name for the log
+     * @param max number of threads the stage has
+     * @return an adaptive limit if {@code nchdfs.adaptiveConcurrency} is set,
+     * a fixed one otherwise
+     */
+    public static AdaptiveLimit fromConfig(Config conf, String name, int max) {
+        if (!conf.getBoolean("nchdfs.adaptiveConcurrency") || max < 2) {
+            return fixed(name, max);
+        }
+        long window = conf.getDuration("nchdfs.adaptiveWindow", TimeUnit.NANOSECONDS);
+        double tolerance = conf.getDouble("nchdfs.adaptiveTolerance");
+        if (window <= 0) {
+            throw new IllegalArgumentException("nchdfs.adaptiveWindow must be positive, but was " + window + "ns");
+        }
+        if (tolerance < 0 || tolerance >= 1) {
+            throw new IllegalArgumentException("nchdfs.adaptiveTolerance must be in [0, 1), but was " + tolerance);
+        }
+        AdaptiveLimit al = new AdaptiveLimit(name, max, window, tolerance, true);
+        al.limit = (max + 1) / 2; // leave room to probe upwards
+        LOG.info("Adapting {} concurrency between 1 and {}, starting at {}.", new Object[]{name, max, al.limit});
+        return al;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of workers currently admitted at once
+     */
+    public synchronized int limit() {
+        return limit;
+    }
+
+    /**
+     * Wait until another worker may become active.
+     *
+     * @throws InterruptedIOException
+     */
+    public void acquire() throws InterruptedIOException {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                while (active >= limit) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while waiting for a " + name + " permit");
+            }
+            active++;
+            saturated |= active >= limit;
+        }
+    }
+
+    /**
+     * @param bytes moved by the worker since it acquired its permit
+     * @param success {@code false} if the work failed, which counts as
+     * overload
+     */
+    public void release(long bytes, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            active--;
+            windowBytes += bytes;
+            failed |= !success;
+            long now = clock.getAsLong();
+            if (now - windowStart >= windowNanos) {
+                adjust(now);
+            }
+            notifyAll();
+        }
+    }
+
+    private void adjust(long now) {
+        double rate = windowBytes * 1e9 / (now - windowStart);
+        int old = limit;
+        if (failed || (saturated && lastRate > 0 && rate < lastRate * (1 - tolerance))) {
+            limit = Math.max(1, limit / 2);
+        } else if (saturated) {
+            limit = Math.min(max, limit + 1);
+        }
+        if (limit != old) {
+            LOG.info("{} concurrency {} -> {} at {} bytes/s (previous window {} bytes/s{}).",
+                    new Object[]{name, old, limit, (long) rate, (long) lastRate, failed ? ", with failures" : ""});
+        }
+        // neither an unsaturated window nor one before a decrease is a fair
+        // baseline for the next one
+        lastRate = saturated && limit >= old && !failed ? rate : -1;
+        windowStart = now;
+        windowBytes = 0;
+        saturated = false;
+        failed = false;
+    }
+}
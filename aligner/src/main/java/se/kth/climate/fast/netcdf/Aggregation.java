@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.escape.Escaper;
+import com.google.common.io.Files;
+import com.google.common.xml.XmlEscapers;
+import com.typesafe.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.util.cache.FileCacheIF;
+
+/**
+ * Joins schema compatible input files along their split dimension, so that
+ * they are aligned as one dataset and blocks can span file boundaries.
+ * <p>
+ * The split dimension is {@code nchdfs.splitdim} if set, otherwise the
+ * unlimited dimension. Files that agree on everything but its length (see
+ * {@link MetaInfo#schemaFingerprint(String)}) and on the global attributes
+ * that identify a run (see {@link #IDENTITY_ATTRIBUTES}) are ordered by their
+ * first coordinate value. Each stretch of them whose coordinates neither
+ * overlap nor leave a gap forms one {@link Join}, which is opened as a virtual
+ * NcML {@code joinExisting} aggregation.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class Aggregation {
+
+    static final Logger LOG = LoggerFactory.getLogger(Aggregation.class);
+
+    public static final String NCML_NAMESPACE = "http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2";
+    public static final String NCML_SUFFIX = ".ncml";
+    /**
+     * Global attributes that tell apart models, experiments and ensemble
+     * members (CMIP5, CMIP6 and CORDEX), which often share a grid.
+     */
+    public static final List<String> IDENTITY_ATTRIBUTES = ImmutableList.of(
+            "institute_id", "institution_id", "model_id", "source_id", "driving_model_id",
+            "experiment_id", "realization", "initialization_method", "physics_version",
+            "variant_label", "member_id");
+    /**
+     * Coordinates further apart than this many steps of the previous file
+     * leave a gap.
+     */
+    static final double GAP_STEPS = 1.5;
+    /**
+     * Member files the CDM file cache keeps open, unless
+     * {@link #initFileCache(int)} is called before the first join is opened.
+     */
+    public static final int DEFAULT_FILE_CACHE_SIZE = 64;
+    static final int FILE_CACHE_PERIOD_S = 15 * 60;
+
+    private static boolean fileCacheReady = false;
+
+    /**
+     * Group {@code files} into joins, reading their headers only.
+     *
+     * @param files
+     * @param conf
+     * @return joins in the order their first file appears in {@code files},
+     * with the runs of a group in coordinate order
+     * @throws IOException
+     */
+    public static List<Join> group(File[] files, Config conf) throws IOException {
+        Optional<String> splitDim = conf.hasPath("nchdfs.splitdim")
+                ? Optional.of(conf.getString("nchdfs.splitdim")) : Optional.absent();
+        Map<String, Join> byKey = new LinkedHashMap<>();
+        List<Join> joins = new ArrayList<>();
+        for (File f : files) {
+            try (NetcdfFile ncfile = NetcdfFile.open(f.getAbsolutePath())) {
+                Dimension dim = splitDim.isPresent() ? ncfile.findDimension(splitDim.get()) : ncfile.getUnlimitedDimension();
+                if (dim == null) {
+                    LOG.info("{} has no dimension to join over, importing it on its own.", f);
+                    joins.add(Join.of(f));
+                    continue;
+                }
+                String dimName = dim.getFullNameEscaped();
+                String key = dimName + "/" + MetaInfo.fromNetCDF(ncfile).schemaFingerprint(dimName) + "/" + identity(ncfile);
+                Join j = byKey.get(key);
+                if (j == null) {
+                    j = new Join(dimName);
+                    byKey.put(key, j);
+                    joins.add(j);
+                }
+                double[] range = coordinateRange(ncfile, dim);
+                j.add(f, dim.getLength(), range == null ? null : range[0], range == null ? null : range[1]);
+            }
+        }
+        List<Join> runs = new ArrayList<>(joins.size());
+        for (Join j : joins) {
+            j.sort();
+            runs.addAll(j.runs());
+        }
+        LOG.info("Joined {} files into {} datasets.", files.length, runs.size());
+        return runs;
+    }
+
+    private static String identity(NetcdfFile ncfile) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : IDENTITY_ATTRIBUTES) {
+            Attribute a = ncfile.findGlobalAttribute(name);
+            if (a != null) {
+                sb.append(name).append('=')
+                        .append(a.isString() ? a.getStringValue() : String.valueOf(a.getNumericValue()))
+                        .append(';');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Opens plain files as well as the NcML of a join.
+     *
+     * @param location
+     * @return
+     * @throws IOException
+     */
+    public static NetcdfFile openLocation(String location) throws IOException {
+        if (location.endsWith(NCML_SUFFIX)) {
+            initFileCache(DEFAULT_FILE_CACHE_SIZE);
+            return NetcdfDataset.openFile(location, null);
+        }
+        return NetcdfFile.open(location);
+    }
+
+    /**
+     * Without the cache an aggregation opens and parses the header of a
+     * member file for every single read. Only the first call has an effect.
+     *
+     * @param maxFiles member files kept open at most, in use or not, e.g.
+     * {@code nchdfs.maxOpenFiles}
+     */
+    public static synchronized void initFileCache(int maxFiles) {
+        if (!fileCacheReady) {
+            NetcdfDataset.initNetcdfFileCache(Math.max(1, maxFiles / 2), Math.max(1, maxFiles), FILE_CACHE_PERIOD_S);
+            fileCacheReady = true;
+        }
+    }
+
+    /**
+     * @return the first and last coordinate value along {@code dim}, or
+     * {@code null} if there is no numeric coordinate variable
+     */
+    private static double[] coordinateRange(NetcdfFile ncfile, Dimension dim) {
+        Variable cv = ncfile.findVariable(dim.getFullNameEscaped());
+        if (cv == null || cv.getRank() != 1 || !cv.getDataType().isNumeric() || dim.getLength() == 0) {
+            return null;
+        }
+        try {
+            int last = dim.getLength() - 1;
+            return new double[]{
+                cv.read(new int[]{0}, new int[]{1}).getDouble(0),
+                cv.read(new int[]{last}, new int[]{1}).getDouble(0)};
+        } catch (IOException | InvalidRangeException ex) {
+            LOG.warn("Could not read {} of {}, ordering it by name.", dim.getFullNameEscaped(), ncfile.getLocation(), ex);
+            return null;
+        }
+    }
+
+    public static class Join {
+
+        private final String dim;
+        private final List<Part> parts = new ArrayList<>();
+
+        Join(String dim) {
+            this.dim = dim;
+        }
+
+        /**
+         * @param f
+         * @return a join of just {@code f}, without opening it
+         */
+        public static Join of(File f) {
+            Join j = new Join(null);
+            j.add(f, -1, null, null);
+            return j;
+        }
+
+        void add(File f, int length, Double first, Double last) {
+            parts.add(new Part(f, length, first, last));
+        }
+
+        void sort() {
+            parts.sort((p1, p2) -> ComparisonChain.start()
+                    .compare(p1.first, p2.first, Ordering.natural().nullsLast())
+                    .compare(p1.file.getName(), p2.file.getName())
+                    .result());
+        }
+
+        /**
+         * Cuts the sorted parts wherever a part overlaps or repeats the
+         * coordinates before it, or leaves a gap, since those are most likely
+         * different datasets. Parts without coordinates can't be checked and
+         * are joined by name on their own, parts with descending ones stay
+         * alone.
+         *
+         * @return the joins of each contiguous run, just this if there is one
+         */
+        List<Join> runs() {
+            List<Join> runs = new ArrayList<>();
+            Join run = null;
+            Part prev = null;
+            for (Part p : parts) {
+                boolean descending = p.first != null && p.last < p.first;
+                if (run == null || descending || !follows(prev, p)) {
+                    if (run != null) {
+                        runs.add(run);
+                    }
+                    run = new Join(dim);
+                    if (descending) {
+                        LOG.warn("{} has descending {}, importing it on its own.", p.file, dim);
+                    }
+                }
+                run.parts.add(p);
+                prev = descending ? null : p;
+            }
+            if (run != null) {
+                runs.add(run);
+            }
+            return runs.size() == 1 ? ImmutableList.of(this) : runs;
+        }
+
+        private boolean follows(Part prev, Part p) {
+            if (prev == null) {
+                return false;
+            }
+            if (prev.first == null || p.first == null) {
+                return prev.first == null && p.first == null;
+            }
+            if (p.first <= prev.last) {
+                LOG.warn("{} overlaps {} along {} ({} <= {}), not joining them.",
+                        new Object[]{p.file, prev.file, dim, p.first, prev.last});
+                return false;
+            }
+            if (prev.length > 1) {
+                double step = (prev.last - prev.first) / (prev.length - 1);
+                if (p.first - prev.last > GAP_STEPS * step) {
+                    LOG.warn("{} doesn't continue {} along {} ({} after {}), not joining them.",
+                            new Object[]{p.file, prev.file, dim, p.first, prev.last});
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public List<File> files() {
+            List<File> files = new ArrayList<>(parts.size());
+            for (Part p : parts) {
+                files.add(p.file);
+            }
+            return files;
+        }
+
+        /**
+         * @return the joined dimension, absent for a single file without one
+         */
+        public Optional<String> dimension() {
+            return Optional.fromNullable(dim);
+        }
+
+        /**
+         * A single file is opened as it is, several as an NcML aggregation
+         * described in {@code ncmlDir}.
+         *
+         * @param ncmlDir
+         * @return
+         * @throws IOException
+         */
+        public NetcdfFile open(File ncmlDir) throws IOException {
+            if (parts.size() == 1) {
+                return NetcdfFile.open(parts.get(0).file.getAbsolutePath());
+            }
+            // unique, since joins of different folders may start with the same name
+            File ncml = File.createTempFile(FilenameUtils.removeExtension(parts.get(0).file.getName()) + "_joined", NCML_SUFFIX, ncmlDir);
+            Files.write(toNcML(), ncml, Charsets.UTF_8);
+            ncml.deleteOnExit();
+            LOG.info("Joining {} files along {} as {}", new Object[]{parts.size(), dim, ncml.getAbsolutePath()});
+            return openLocation(ncml.getAbsolutePath());
+        }
+
+        /**
+         * Closes the members the file cache still keeps open, once the join's
+         * blocks are written.
+         */
+        void evict() {
+            FileCacheIF cache = NetcdfDataset.getNetcdfFileCache();
+            if (cache == null || parts.size() < 2) {
+                return;
+            }
+            for (Part p : parts) {
+                cache.eject(p.file.getAbsolutePath());
+            }
+        }
+
+        /**
+         * The member lengths are given as {@code ncoords}, so the aggregation
+         * doesn't have to open every member to find them.
+         */
+        String toNcML() {
+            Escaper esc = XmlEscapers.xmlAttributeEscaper();
+            StringBuilder sb = new StringBuilder();
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            sb.append("<netcdf xmlns=\"").append(NCML_NAMESPACE).append("\">\n");
+            sb.append("  <aggregation dimName=\"").append(esc.escape(dim)).append("\" type=\"joinExisting\">\n");
+            for (Part p : parts) {
+                sb.append("    <netcdf location=\"").append(esc.escape(p.file.getAbsolutePath()))
+                        .append("\" ncoords=\"").append(p.length).append("\"/>\n");
+            }
+            sb.append("  </aggregation>\n");
+            sb.append("</netcdf>\n");
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            if (parts.size() == 1) {
+                return parts.get(0).file.getAbsolutePath();
+            }
+            return "Join(" + dim + ", " + files() + ")";
+        }
+    }
+
+    private static class Part {
+
+        final File file;
+        final int length;
+        final Double first;
+        final Double last;
+
+        Part(File file, int length, Double first, Double last) {
+            this.file = file;
+            this.length = length;
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record of the blocks that have been completely written to the target, so an
+ * interrupted import can be resumed without writing them again.
+ * <p>
+ * Every line is {@code <file name>\t<size>[\t[<checksum>]\t<source>]}. A block
+ * only counts as complete if it is in the manifest, the file at the target
+ * still has that size, and it was written from the same version of its source
+ * (see {@link #sourceIdentity(List)}). Block names only follow from the
+ * schema, so otherwise corrected input data would keep its old blocks.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class BlockManifest implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(BlockManifest.class);
+
+    public static final String MANIFEST_NAME = "_manifest";
+
+    /**
+     * Where the manifest and the blocks it describes are kept.
+     */
+    public interface Store {
+
+        /**
+         * @return all lines recorded by earlier runs
+         * @throws IOException
+         */
+        public List<String> load() throws IOException;
+
+        /**
+         * @return a stream for the entries of this run, which must be durable
+         * once {@link OutputStream#flush()} returns
+         * @throws IOException
+         */
+        public OutputStream open() throws IOException;
+
+        /**
+         * @param name
+         * @return the size of the file {@code name} at the target, or -1 if it
+         * does not exist
+         * @throws IOException
+         */
+        public long length(String name) throws IOException;
+
+        /**
+         * @param name
+         * @return the checksum of the file {@code name} at the target, in the
+         * form passed to {@link BlockManifest#record(String, long, Optional)},
+         * if the store can compute it cheaply
+         * @throws IOException
+         */
+        public default Optional<String> checksum(String name) throws IOException {
+            return Optional.absent();
+        }
+    }
+
+    private final Store store;
+    private final Map<String, Long> blocks = new ConcurrentHashMap<>();
+    private final Map<String, String> checksums = new ConcurrentHashMap<>();
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+    private final Map<String, String> expected = new ConcurrentHashMap<>();
+    private OutputStream out = null;
+
+    private BlockManifest(Store store) {
+        this.store = store;
+    }
+
+    /**
+     * A manifest that never skips anything and doesn't record anything.
+     *
+     * @return
+     */
+    public static BlockManifest none() {
+        return new BlockManifest(null);
+    }
+
+    /**
+     * @param store
+     * @param resume if {@code false} entries from earlier runs are ignored
+     * @return
+     * @throws IOException
+     */
+    public static BlockManifest open(Store store, boolean resume) throws IOException {
+        BlockManifest manifest = new BlockManifest(store);
+        if (resume) {
+            for (String line : store.load()) {
+                String[] parts = line.split("\t");
+                if (parts.length < 2) {
+                    continue; // torn write at the end of a segment
+                }
+                try {
+                    manifest.blocks.put(parts[0], Long.parseLong(parts[1]));
+                    if (parts.length > 2 && !parts[2].isEmpty()) {
+                        manifest.checksums.put(parts[0], parts[2]);
+                    } else {
+                        manifest.checksums.remove(parts[0]);
+                    }
+                    if (parts.length > 3) {
+                        manifest.sources.put(parts[0], parts[3]);
+                    } else {
+                        manifest.sources.remove(parts[0]);
+                    }
+                } catch (NumberFormatException ex) {
+                    LOG.debug("Ignoring invalid manifest line: {}", line);
+                }
+            }
+            LOG.info("Manifest lists {} completed blocks.", manifest.blocks.size());
+        }
+        manifest.out = store.open();
+        return manifest;
+    }
+
+    /**
+     * @return {@code false} for {@link #none()}
+     */
+    public boolean isEnabled() {
+        return store != null;
+    }
+
+    /**
+     * @param files
+     * @return identifies the current version of an input made of
+     * {@code files}, by their paths, sizes and modification times
+     */
+    public static String sourceIdentity(List<File> files) {
+        Hasher h = Hashing.sha256().newHasher();
+        for (File f : files) {
+            h.putString(f.getAbsolutePath(), Charsets.UTF_8)
+                    .putLong(f.length())
+                    .putLong(f.lastModified());
+        }
+        return h.hash().toString();
+    }
+
+    /**
+     * @param name
+     * @param source identity of the input the block is written from now
+     * @return {@code true} if the block {@code name} is already at the target,
+     * written from {@code source}, with the recorded size and, if the store
+     * can tell, checksum
+     * @throws IOException
+     */
+    public boolean isComplete(String name, String source) throws IOException {
+        if (store == null) {
+            return false;
+        }
+        Long size = blocks.get(name);
+        if (size == null || store.length(name) != size) {
+            return false;
+        }
+        if (!source.equals(sources.get(name))) {
+            LOG.info("Block {} was written from another version of its source. Writing it again.", name);
+            return false;
+        }
+        Optional<String> recorded = checksum(name);
+        if (recorded.isPresent()) {
+            Optional<String> actual = store.checksum(name);
+            if (actual.isPresent() && !actual.get().equals(recorded.get())) {
+                LOG.warn("Block {} has checksum {} at the target, but {} was recorded. Writing it again.",
+                        new Object[]{name, actual.get(), recorded.get()});
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Note that block {@code name} is about to be written from
+     * {@code source}, so that is recorded along with it.
+     *
+     * @param name
+     * @param source
+     */
+    public void expect(String name, String source) {
+        if (store != null) {
+            expected.put(name, source);
+        }
+    }
+
+    public void record(String name, long size) throws IOException {
+        record(name, size, Optional.<String>absent());
+    }
+
+    /**
+     * @param name
+     * @param size
+     * @param checksum of the block as written, if one was computed
+     * @throws IOException
+     */
+    public synchronized void record(String name, long size, Optional<String> checksum) throws IOException {
+        if (store == null) {
+            return;
+        }
+        blocks.put(name, size);
+        StringBuilder sb = new StringBuilder();
+        sb.append(name);
+        sb.append('\t');
+        sb.append(size);
+        String source = expected.remove(name);
+        if (checksum.isPresent()) {
+            checksums.put(name, checksum.get());
+        } else {
+            checksums.remove(name);
+        }
+        if (checksum.isPresent() || source != null) {
+            sb.append('\t');
+            sb.append(checksum.or(""));
+        }
+        if (source != null) {
+            sources.put(name, source);
+            sb.append('\t');
+            sb.append(source);
+        } else {
+            sources.remove(name);
+        }
+        sb.append('\n');
+        out.write(sb.toString().getBytes(Charsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * @param name
+     * @return the checksum recorded for block {@code name}
+     */
+    public Optional<String> checksum(String name) {
+        return Optional.fromNullable(checksums.get(name));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Keeps the manifest as {@link #MANIFEST_NAME} in the local output
+     * folder.
+     */
+    public static class LocalStore implements Store {
+
+        private final File dir;
+        private final File manifest;
+        private final boolean resume;
+
+        public LocalStore(File dir, boolean resume) {
+            this.dir = dir;
+            this.manifest = new File(dir, MANIFEST_NAME);
+            this.resume = resume;
+        }
+
+        @Override
+        public List<String> load() throws IOException {
+            List<String> lines = new ArrayList<>();
+            if (manifest.exists()) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines.add(line);
+                    }
+                }
+            }
+            return lines;
+        }
+
+        @Override
+        public OutputStream open() throws IOException {
+            final FileOutputStream fos = new FileOutputStream(manifest, resume);
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    fos.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    fos.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    fos.flush();
+                    fos.getFD().sync();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    fos.close();
+                }
+            };
+        }
+
+        @Override
+        public long length(String name) {
+            File f = new File(dir, name);
+            return f.isFile() ? f.length() : -1;
+        }
+    }
+}
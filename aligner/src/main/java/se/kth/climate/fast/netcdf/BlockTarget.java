@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination for blocks that are streamed directly, instead of being staged
+ * as local files and handed over through a {@link WorkQueue}.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public interface BlockTarget {
+
+    /**
+     * Open a stream for a new block. May be called concurrently.
+     *
+     * @param name file name of the block
+     * @param size exact number of bytes that will be written, or an upper
+     * bound for compressed blocks
+     * @return a stream the caller closes once all data is written
+     * @throws IOException
+     */
+    public OutputStream create(String name, long size) throws IOException;
+
+    /**
+     * Called once the stream for {@code name} is closed, in the same order
+     * the blocks would have been put into the {@link WorkQueue}.
+     *
+     * @param name file name of the block
+     * @param size number of bytes written, exact also for compressed blocks
+     * @throws IOException
+     */
+    public void commit(String name, long size) throws IOException;
+}
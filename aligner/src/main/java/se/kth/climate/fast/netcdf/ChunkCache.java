@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+
+/**
+ * Keeps recently read, chunk aligned hyperslabs of a compressed source, so
+ * that a source chunk that is cut by a block or copy boundary is only read
+ * and decompressed once.
+ * <p>
+ * Bounded by the total size of the cached arrays and shared by all writer
+ * threads of a {@link NetCDFWriter}; least recently used entries go first.
+ * Threads that miss on a key that is already being read wait for that read
+ * instead of reading it again.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+class ChunkCache {
+
+    private final long capacity;
+    private final LinkedHashMap<String, Array> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<Array>> loading = new HashMap<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity in bytes
+     */
+    ChunkCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    interface Loader {
+
+        Array load() throws IOException, InvalidRangeException;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @param key
+     * @param loader reads the data if it is neither cached nor being read
+     * @return the data for {@code key}
+     * @throws IOException
+     * @throws InvalidRangeException
+     */
+    Array get(String key, Loader loader) throws IOException, InvalidRangeException {
+        FutureTask<Array> task;
+        boolean owner = false;
+        synchronized (this) {
+            Array data = entries.get(key);
+            if (data != null) {
+                hits++;
+                return data;
+            }
+            task = loading.get(key);
+            if (task == null) {
+                misses++;
+                task = new FutureTask<>(loader::load);
+                loading.put(key, task);
+                owner = true;
+            } else {
+                hits++;
+            }
+        }
+        if (owner) {
+            task.run();
+        }
+        try {
+            Array data = task.get();
+            if (owner) {
+                put(key, data);
+            }
+            return data;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InvalidRangeException) {
+                throw (InvalidRangeException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (owner) {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+            }
+        }
+    }
+
+    private synchronized void put(String key, Array data) {
+        long size = data.getSizeBytes();
+        if (size > capacity) {
+            return; // would only evict everything else
+        }
+        Array old = entries.put(key, data);
+        if (old != null) {
+            bytes -= old.getSizeBytes();
+        }
+        bytes += size;
+        Iterator<Map.Entry<String, Array>> it = entries.entrySet().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            Map.Entry<String, Array> e = it.next();
+            bytes -= e.getValue().getSizeBytes();
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChunkCache(entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses + ")";
+    }
+}
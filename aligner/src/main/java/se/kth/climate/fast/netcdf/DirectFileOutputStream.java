@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file with {@code O_DIRECT}, bypassing the page cache.
+ * <p>
+ * Direct writes must be block aligned, so data is gathered in an aligned
+ * buffer and the last block is padded and cut off again on close. Needs a JDK
+ * with {@code ExtendedOpenOption.DIRECT} (10 or newer), which is looked up
+ * reflectively since we build for 1.8.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+class DirectFileOutputStream extends OutputStream {
+
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final OpenOption DIRECT;
+    private static final Method ALIGNED_SLICE;
+    private static final Method BLOCK_SIZE;
+
+    static {
+        OpenOption direct = null;
+        Method alignedSlice = null;
+        Method blockSize = null;
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object o : options.getEnumConstants()) {
+                if (((Enum<?>) o).name().equals("DIRECT")) {
+                    direct = (OpenOption) o;
+                }
+            }
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+            blockSize = FileStore.class.getMethod("getBlockSize");
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            direct = null;
+        }
+        DIRECT = direct;
+        ALIGNED_SLICE = alignedSlice;
+        BLOCK_SIZE = blockSize;
+    }
+
+    static boolean isSupported() {
+        return DIRECT != null;
+    }
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final ByteBuffer buffer;
+    private long length = 0;
+    private boolean closed = false;
+
+    DirectFileOutputStream(Path p) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Direct I/O is not supported by this JDK");
+        }
+        this.channel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, DIRECT);
+        try {
+            this.blockSize = blockSize(Files.getFileStore(p));
+            int capacity = ((NetCDF3StreamWriter.BUFFER_SIZE + blockSize - 1) / blockSize) * blockSize;
+            this.buffer = (ByteBuffer) ALIGNED_SLICE.invoke(ByteBuffer.allocateDirect(capacity + blockSize), blockSize);
+            buffer.limit(capacity);
+        } catch (IOException | ReflectiveOperationException | RuntimeException ex) {
+            channel.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        }
+    }
+
+    private static int blockSize(FileStore store) {
+        try {
+            long size = (Long) BLOCK_SIZE.invoke(store);
+            if (size > 0 && size <= (1 << 20)) {
+                return (int) size;
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // fall through
+        }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Only whole buffers can be written, so this does nothing until close.
+     */
+    @Override
+    public void flush() {
+    }
+
+    private void drain() throws IOException {
+        int capacity = buffer.limit();
+        length += buffer.position();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            int tail = buffer.position();
+            if (tail > 0) {
+                int padded = ((tail + blockSize - 1) / blockSize) * blockSize;
+                while (buffer.position() < padded) {
+                    buffer.put((byte) 0);
+                }
+                drain();
+                length -= padded - tail;
+                channel.truncate(length);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
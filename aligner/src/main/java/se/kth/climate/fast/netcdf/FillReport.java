@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Joiner;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Collects how well the written blocks fill the HDFS blocks, and how far the
+ * size estimates of {@link DataDescriptor} were off.
+ * <p>
+ * Blocks are grouped by their variable set, and a histogram of fill ratios
+ * (in 10% steps) is kept for each group.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class FillReport {
+
+    static final int HISTOGRAM_BUCKETS = 10;
+
+    private final long blockSize;
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<String, Group> groups = new TreeMap<>();
+    private long bytes = 0;
+    private long wasted = 0;
+
+    /**
+     * @param blockSize the block size the data was aligned to
+     */
+    public FillReport(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public synchronized void add(String name, Set<String> vars, long estimated, long actual) {
+        TreeSet<String> sortedVars = new TreeSet<>(vars);
+        double fill = blockSize > 0 ? (double) actual / (double) blockSize : 1.0;
+        blocks.add(new Block(name, new ArrayList<>(sortedVars), estimated, actual, fill));
+        String key = Joiner.on(',').join(sortedVars);
+        Group g = groups.get(key);
+        if (g == null) {
+            g = new Group(new ArrayList<>(sortedVars));
+            groups.put(key, g);
+        }
+        long waste = Math.max(0, blockSize - actual);
+        g.blocks++;
+        g.bytes += actual;
+        g.wasted += waste;
+        g.fillHistogram[Math.max(0, Math.min(HISTOGRAM_BUCKETS - 1, (int) (fill * HISTOGRAM_BUCKETS)))]++;
+        bytes += actual;
+        wasted += waste;
+    }
+
+    public synchronized int blocks() {
+        return blocks.size();
+    }
+
+    public synchronized long wasted() {
+        return wasted;
+    }
+
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("FillReport(blocks=");
+        sb.append(blocks.size());
+        sb.append(", bytes=");
+        sb.append(bytes);
+        sb.append(", wasted=");
+        sb.append(wasted);
+        sb.append(", meanFill=");
+        sb.append(String.format("%.3f", meanFill()));
+        sb.append(")");
+        return sb.toString();
+    }
+
+    public synchronized String toJson() {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        return gson.toJson(new Snapshot(this));
+    }
+
+    private double meanFill() {
+        if (blocks.isEmpty() || blockSize <= 0) {
+            return 0.0;
+        }
+        return (double) bytes / ((double) blockSize * blocks.size());
+    }
+
+    static class Block {
+
+        final String name;
+        final List<String> vars;
+        final long estimated;
+        final long actual;
+        final double fill;
+        final double estimateError; // relative to the actual size
+
+        Block(String name, List<String> vars, long estimated, long actual, double fill) {
+            this.name = name;
+            this.vars = vars;
+            this.estimated = estimated;
+            this.actual = actual;
+            this.fill = fill;
+            this.estimateError = actual > 0 ? (double) (estimated - actual) / (double) actual : 0.0;
+        }
+    }
+
+    static class Group {
+
+        final List<String> vars;
+        int blocks = 0;
+        long bytes = 0;
+        long wasted = 0;
+        final int[] fillHistogram = new int[HISTOGRAM_BUCKETS];
+
+        Group(List<String> vars) {
+            this.vars = vars;
+        }
+    }
+
+    /**
+     * What ends up in the JSON file.
+     */
+    static class Snapshot {
+
+        final long blockSize;
+        final int totalBlocks;
+        final long totalBytes;
+        final long wastedBytes;
+        final double meanFill;
+        final List<Group> groups;
+        final List<Block> blocks;
+
+        Snapshot(FillReport r) {
+            this.blockSize = r.blockSize;
+            this.totalBlocks = r.blocks.size();
+            this.totalBytes = r.bytes;
+            this.wastedBytes = r.wasted;
+            this.meanFill = r.meanFill();
+            this.groups = new ArrayList<>(r.groups.values());
+            this.blocks = new ArrayList<>(r.blocks);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.typesafe.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.aligner.AlignmentCache;
+import se.kth.climate.fast.netcdf.aligner.AssignmentQualityMeasure;
+import se.kth.climate.fast.netcdf.aligner.BlockAligner;
+import se.kth.climate.fast.netcdf.aligner.CompressionEstimator;
+import se.kth.climate.fast.netcdf.aligner.MeasureRegister;
+import se.kth.climate.fast.netcdf.aligner.TailPacker;
+import se.kth.climate.fast.netcdf.aligner.VariableAlignment;
+import se.kth.climate.fast.netcdf.aligner.VariableFit;
+import se.kth.climate.fast.netcdf.metadata.MetaConverter;
+import ucar.nc2.NetcdfFile;
+
+/**
+ * Plans an import without reading or writing any block data.
+ * <p>
+ * Every input file is opened for its header only, converted and aligned
+ * exactly as {@link ImportWorker} would, and closed again right away, so that
+ * very large ensembles can be planned without holding thousands of files
+ * open. Files are processed on {@code nchdfs.planThreads} threads.
+ * <p>
+ * With {@code nchdfs.aggregate} every {@link Aggregation.Join} is planned as
+ * one dataset.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class ImportPlanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImportPlanner.class);
+
+    private final Config conf;
+    private final int threads;
+
+    public ImportPlanner(Config conf) {
+        this.conf = conf;
+        this.threads = conf.getInt("nchdfs.planThreads");
+        if (threads < 1) {
+            throw new IllegalArgumentException("nchdfs.planThreads must be at least 1, but was " + threads);
+        }
+    }
+
+    /**
+     * Plan all files.
+     * <p>
+     * A file that can not be planned is reported with its error in the plan
+     * instead of failing the whole run.
+     *
+     * @param files
+     * @param title used for files that don't have one of their own
+     * @return the plan, with files in the same order as {@code files}
+     * (joined files at the position of their first one)
+     * @throws IOException if planning was interrupted
+     */
+    public Plan plan(File[] files, String title) throws IOException {
+        long blockSize = conf.getBytes("nchdfs.blockSize");
+        AssignmentQualityMeasure aqm = MeasureRegister.fromConfig(conf);
+        AlignmentCache alignments = AlignmentCache.fromConfig(conf);
+        List<Aggregation.Join> joins;
+        File ncmlDir = null;
+        if (conf.getBoolean("nchdfs.aggregate")) {
+            joins = Aggregation.group(files, conf);
+            ncmlDir = Files.createTempDir();
+            ncmlDir.deleteOnExit();
+        } else {
+            joins = new ArrayList<>(files.length);
+            for (File f : files) {
+                joins.add(Aggregation.Join.of(f));
+            }
+        }
+        int poolSize = Math.min(threads, Math.max(joins.size(), 1));
+        LOG.info("Planning {} files with {} threads.", joins.size(), poolSize);
+        ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(poolSize));
+        try {
+            List<ListenableFuture<FilePlan>> futures = new ArrayList<>(joins.size());
+            for (Aggregation.Join j : joins) {
+                futures.add(executor.submit(new FileTask(j, ncmlDir, title, blockSize, aqm, alignments)));
+            }
+            Plan plan = new Plan(blockSize);
+            for (ListenableFuture<FilePlan> future : futures) {
+                try {
+                    plan.add(future.get());
+                } catch (ExecutionException ex) {
+                    throw new IOException(ex.getCause());
+                }
+            }
+            LOG.info("Planned {} blocks ({} bytes) for {} files, {} failed.",
+                    new Object[]{plan.totalBlocks, plan.estimatedBytes, plan.files.size(), plan.failedFiles});
+            return plan;
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static void write(Plan plan, File out) throws IOException {
+        Files.write(plan.toJson(), out, Charsets.UTF_8);
+        LOG.info("Wrote import plan to {}", out.getAbsolutePath());
+    }
+
+    private class FileTask implements Callable<FilePlan> {
+
+        private final Aggregation.Join join;
+        private final File ncmlDir;
+        private final String title;
+        private final long blockSize;
+        private final AssignmentQualityMeasure aqm;
+        private final AlignmentCache alignments;
+
+        FileTask(Aggregation.Join join, File ncmlDir, String title, long blockSize, AssignmentQualityMeasure aqm, AlignmentCache alignments) {
+            this.join = join;
+            this.ncmlDir = ncmlDir;
+            this.title = title;
+            this.blockSize = blockSize;
+            this.aqm = aqm;
+            this.alignments = alignments;
+        }
+
+        @Override
+        public FilePlan call() {
+            List<File> members = join.files();
+            FilePlan fp = new FilePlan(members.get(0).getAbsolutePath());
+            if (members.size() > 1) {
+                fp.joined = new ArrayList<>(members.size());
+                for (File f : members) {
+                    fp.joined.add(f.getAbsolutePath());
+                }
+            }
+            try (Metrics.Timer t = Metrics.time("plan.file");
+                    NetcdfFile ncfile = join.open(ncmlDir)) {
+                if (ncfile.getTitle() == null) {
+                    ncfile.setTitle(title);
+                }
+                fp.dataSize = NetCDFUtils.estimateDataSize(ncfile);
+                MetaInfo mInfo = MetaInfo.fromNetCDF(ncfile);
+                MetaConverter.convert(ncfile, mInfo);
+                BlockAligner aligner = new BlockAligner(blockSize, mInfo, aqm, conf, alignments);
+                VariableAlignment va = aligner.align();
+                if (conf.getBoolean("nchdfs.packTails")) {
+                    va = new TailPacker(blockSize, aligner.estimator()).pack(va);
+                }
+                for (VariableFit vf : va.fits) {
+                    for (DataDescriptor dd : vf.dataDescriptors) {
+                        fp.add(dd, aligner.estimator());
+                    }
+                }
+            } catch (Exception ex) { // includes FittingException, one broken file shouldn't fail the plan
+                LOG.warn("Could not plan {}", join, ex);
+                fp.error = ex.toString();
+            }
+            return fp;
+        }
+    }
+
+    public static class Plan {
+
+        final long blockSize;
+        long totalBlocks = 0;
+        long estimatedBytes = 0;
+        long failedFiles = 0;
+        final List<FilePlan> files = new ArrayList<>();
+
+        Plan(long blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        void add(FilePlan fp) {
+            files.add(fp);
+            totalBlocks += fp.blocks.size();
+            estimatedBytes += fp.estimatedBytes;
+            if (fp.error != null) {
+                failedFiles++;
+            }
+        }
+
+        public long totalBlocks() {
+            return totalBlocks;
+        }
+
+        public long estimatedBytes() {
+            return estimatedBytes;
+        }
+
+        public String toJson() {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            return gson.toJson(this);
+        }
+    }
+
+    static class FilePlan {
+
+        final String file;
+        List<String> joined = null; // all files of a join, in order
+        long dataSize = 0;
+        long estimatedBytes = 0;
+        String error = null;
+        final List<BlockPlan> blocks = new ArrayList<>();
+
+        FilePlan(String file) {
+            this.file = file;
+        }
+
+        void add(DataDescriptor dd, CompressionEstimator estimator) {
+            BlockPlan bp = new BlockPlan(dd, estimator.estimate(dd));
+            blocks.add(bp);
+            estimatedBytes += bp.estimated;
+        }
+    }
+
+    static class BlockPlan {
+
+        final long estimated;
+        final List<String> vars;
+        final String splitDim;
+        final Map<String, long[]> ranges = new TreeMap<>();
+
+        BlockPlan(DataDescriptor dd, long estimated) {
+            this.estimated = estimated;
+            this.vars = new ArrayList<>(new TreeSet<>(dd.vars));
+            this.splitDim = dd.splitDim.orNull();
+            for (DimensionRange dr : dd.dims.values()) {
+                ranges.put(dr.name, new long[]{dr.start, dr.end});
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.typesafe.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.common.Metadata;
+import se.kth.climate.fast.netcdf.aligner.AlignmentCache;
+import se.kth.climate.fast.netcdf.aligner.AssignmentQualityMeasure;
+import se.kth.climate.fast.netcdf.aligner.MeasureRegister;
+
+/**
+ * Runs an {@link ImportWorker} per input file on a bounded thread pool.
+ * <p>
+ * Files are submitted biggest first, so that the long running ones don't end
+ * up as stragglers at the end of the import. Inputs are only opened by their
+ * worker, and {@code nchdfs.maxOpenFiles} bounds the read handles open at
+ * once, counting one per input plus one per parallel block writer. It also
+ * sizes the cache of open member files of aggregated inputs.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class ImportPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImportPool.class);
+
+    private final Config conf;
+    private final int threads;
+    private final BlockManifest manifest;
+    private final FillReport report;
+    private final Semaphore openFiles;
+    private final int handlesPerFile;
+    private Staging staging = Staging.tmp();
+
+    public ImportPool(Config conf) {
+        this(conf, BlockManifest.none());
+    }
+
+    /**
+     * @param conf
+     * @param manifest blocks that are already complete at the target
+     */
+    public ImportPool(Config conf, BlockManifest manifest) {
+        this.conf = conf;
+        this.manifest = manifest;
+        this.report = new FillReport(conf.getBytes("nchdfs.blockSize"));
+        this.threads = conf.getInt("nchdfs.importThreads");
+        if (threads < 1) {
+            throw new IllegalArgumentException("nchdfs.importThreads must be at least 1, but was " + threads);
+        }
+        int maxOpen = conf.getInt("nchdfs.maxOpenFiles");
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("nchdfs.maxOpenFiles must be at least 1, but was " + maxOpen);
+        }
+        int writerThreads = conf.getInt("nchdfs.writerThreads");
+        this.handlesPerFile = Math.min(maxOpen, writerThreads > 1 ? 1 + writerThreads : 1);
+        this.openFiles = new Semaphore(maxOpen, true);
+        Aggregation.initFileCache(maxOpen);
+    }
+
+    /**
+     * @param staging where blocks are written before they go into the progress
+     * pipe
+     */
+    public void setStaging(Staging staging) {
+        this.staging = staging;
+    }
+
+    /**
+     * @return fill efficiency of all blocks written so far
+     */
+    public FillReport report() {
+        return report;
+    }
+
+    /**
+     * Import all files into {@code progressPipe}.
+     * <p>
+     * @param sources
+     * @param progressPipe
+     * @return the metadata of all files, in the same order as {@code sources}
+     * @throws IOException if any of the files failed to import
+     */
+    public List<Metadata> run(List<ImportSource> sources, WorkQueue<File> progressPipe) throws IOException {
+        return run(sources, progressPipe, null);
+    }
+
+    /**
+     * Import all files, streaming the blocks directly into {@code target}.
+     * <p>
+     * @param sources
+     * @param target
+     * @return the metadata of all files, in the same order as {@code sources}
+     * @throws IOException if any of the files failed to import
+     */
+    public List<Metadata> run(List<ImportSource> sources, BlockTarget target) throws IOException {
+        return run(sources, null, target);
+    }
+
+    private List<Metadata> run(List<ImportSource> sources, WorkQueue<File> progressPipe, BlockTarget target) throws IOException {
+        long blockSize = conf.getBytes("nchdfs.blockSize");
+        AssignmentQualityMeasure aqm = MeasureRegister.fromConfig(conf);
+        AlignmentCache alignments = AlignmentCache.fromConfig(conf);
+        AdaptiveLimit writers = AdaptiveLimit.fromConfig(conf, "writer",
+                Math.min(threads, Math.max(sources.size(), 1)) * conf.getInt("nchdfs.writerThreads"));
+        List<Pair<Integer, Long>> order = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            order.add(Pair.with(i, sources.get(i).size()));
+        }
+        order.sort(Comparator.comparing((Pair<Integer, Long> p) -> p.getValue1()).reversed());
+        LOG.debug("Scheduling order (index, size): {}", order);
+        int poolSize = Math.min(threads, Math.max(sources.size(), 1));
+        LOG.info("Importing {} files with {} threads.", sources.size(), poolSize);
+        ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(poolSize));
+        try {
+            List<ListenableFuture<Metadata>> futures = new ArrayList<>(Collections.nCopies(sources.size(), null));
+            for (Pair<Integer, Long> p : order) {
+                int i = p.getValue0();
+                ImportWorker worker = target != null
+                        ? new ImportWorker(sources.get(i), conf, blockSize, aqm, alignments, manifest, report, target)
+                        : new ImportWorker(sources.get(i), conf, blockSize, aqm, alignments, manifest, report, progressPipe);
+                worker.setStaging(staging);
+                worker.setConcurrency(writers);
+                futures.set(i, executor.submit(() -> {
+                    openFiles.acquire(handlesPerFile);
+                    try {
+                        return worker.call();
+                    } finally {
+                        openFiles.release(handlesPerFile);
+                    }
+                }));
+            }
+            List<Metadata> metas = new ArrayList<>(sources.size());
+            for (int i = 0; i < sources.size(); i++) {
+                try {
+                    metas.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    LOG.error("Import of {} failed.", sources.get(i));
+                    futures.forEach(f -> f.cancel(true));
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            return metas;
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.io.File;
+import java.io.IOException;
+import ucar.nc2.NetcdfFile;
+
+/**
+ * An input of the import, which is only opened once an {@link ImportWorker}
+ * gets to it and closed again as soon as its blocks are written, so that
+ * neither file handles nor parsed headers pile up over large imports.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public abstract class ImportSource {
+
+    /**
+     * @return a name for logging, before the source is opened
+     */
+    public abstract String name();
+
+    /**
+     * @return rough size of the input, to schedule big ones first
+     */
+    public abstract long size();
+
+    /**
+     * @return identifies the current version of the input, so blocks from an
+     * earlier version are not taken as complete on resume
+     * @see BlockManifest#sourceIdentity(java.util.List)
+     */
+    public abstract String identity();
+
+    public abstract NetcdfFile open() throws IOException;
+
+    /**
+     * Release a file returned by {@link #open()}.
+     *
+     * @param ncfile
+     * @throws IOException
+     */
+    public void close(NetcdfFile ncfile) throws IOException {
+        ncfile.close();
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /**
+     * @param join
+     * @param ncmlDir folder for the NcML of a join of several files
+     * @param title used if the file doesn't have one of its own
+     * @return
+     */
+    public static ImportSource of(final Aggregation.Join join, final File ncmlDir, final String title) {
+        return new ImportSource() {
+            @Override
+            public String name() {
+                return join.toString();
+            }
+
+            @Override
+            public long size() {
+                long size = 0;
+                for (File f : join.files()) {
+                    size += f.length();
+                }
+                return size;
+            }
+
+            @Override
+            public String identity() {
+                return BlockManifest.sourceIdentity(join.files());
+            }
+
+            @Override
+            public NetcdfFile open() throws IOException {
+                NetcdfFile ncfile = join.open(ncmlDir);
+                if (ncfile.getTitle() == null) {
+                    ncfile.setTitle(title);
+                }
+                return ncfile;
+            }
+
+            @Override
+            public void close(NetcdfFile ncfile) throws IOException {
+                try {
+                    ncfile.close();
+                } finally {
+                    join.evict();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.typesafe.config.Config;
+import java.io.File;
+import java.util.concurrent.Callable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.common.Metadata;
+import se.kth.climate.fast.netcdf.aligner.AlignmentCache;
+import se.kth.climate.fast.netcdf.aligner.AssignmentQualityMeasure;
+import se.kth.climate.fast.netcdf.aligner.BlockAligner;
+import se.kth.climate.fast.netcdf.aligner.TailPacker;
+import se.kth.climate.fast.netcdf.aligner.VariableAlignment;
+import se.kth.climate.fast.netcdf.metadata.MetaConverter;
+import ucar.nc2.NetcdfFile;
+
+/**
+ * Opens, converts, aligns and writes a single input, and closes it again.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class ImportWorker implements Callable<Metadata> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImportWorker.class);
+
+    private final ImportSource source;
+    private final Config conf;
+    private final long blockSize;
+    private final AssignmentQualityMeasure aqm;
+    private final AlignmentCache alignments;
+    private final BlockManifest manifest;
+    private final FillReport report;
+    private final WorkQueue<File> progressPipe;
+    private final BlockTarget target;
+    private Staging staging = Staging.tmp();
+    private AdaptiveLimit writers = null;
+
+    public ImportWorker(ImportSource source, Config conf, long blockSize, AssignmentQualityMeasure aqm,
+            AlignmentCache alignments, BlockManifest manifest, FillReport report, WorkQueue<File> progressPipe) {
+        this(source, conf, blockSize, aqm, alignments, manifest, report, progressPipe, null);
+    }
+
+    public ImportWorker(ImportSource source, Config conf, long blockSize, AssignmentQualityMeasure aqm,
+            AlignmentCache alignments, BlockManifest manifest, FillReport report, BlockTarget target) {
+        this(source, conf, blockSize, aqm, alignments, manifest, report, null, target);
+    }
+
+    private ImportWorker(ImportSource source, Config conf, long blockSize, AssignmentQualityMeasure aqm,
+            AlignmentCache alignments, BlockManifest manifest, FillReport report, WorkQueue<File> progressPipe, BlockTarget target) {
+        this.source = source;
+        this.conf = conf;
+        this.blockSize = blockSize;
+        this.aqm = aqm;
+        this.alignments = alignments;
+        this.manifest = manifest;
+        this.report = report;
+        this.progressPipe = progressPipe;
+        this.target = target;
+    }
+
+    /**
+     * @param staging where blocks are written before they go into the progress
+     * pipe
+     */
+    public void setStaging(Staging staging) {
+        this.staging = staging;
+    }
+
+    /**
+     * @param writers bounds the blocks written at once across all workers
+     */
+    public void setConcurrency(AdaptiveLimit writers) {
+        this.writers = writers;
+    }
+
+    @Override
+    public Metadata call() throws Exception {
+        LOG.info("Processing input file {}", source);
+        NetcdfFile ncfile;
+        try (Metrics.Timer t = Metrics.time("file.open")) {
+            ncfile = source.open();
+        }
+        try {
+            return importFile(ncfile);
+        } finally {
+            source.close(ncfile);
+        }
+    }
+
+    private Metadata importFile(NetcdfFile ncfile) throws Exception {
+        MetaInfo mInfo;
+        try (Metrics.Timer t = Metrics.time("meta.read")) {
+            mInfo = MetaInfo.fromNetCDF(ncfile);
+        }
+        Metadata meta;
+        try (Metrics.Timer t = Metrics.time("meta.convert")) {
+            meta = MetaConverter.convert(ncfile, mInfo);
+        }
+        LOG.debug("Metadata for file {}:\n   {}", ncfile.getLocation(), meta);
+        VariableAlignment va;
+        BlockAligner aligner = new BlockAligner(blockSize, mInfo, aqm, conf, alignments);
+        try (Metrics.Timer t = Metrics.time("align")) {
+            va = aligner.align();
+            if (conf.getBoolean("nchdfs.packTails")) {
+                va = new TailPacker(blockSize, aligner.estimator()).pack(va);
+            }
+        }
+        LOG.info("Chosen alignment: {}", va);
+        // one per file, so staging names from different inputs can't collide
+        NetCDFWriter writer = new NetCDFWriter(conf.getInt("nchdfs.writerThreads"), manifest, report,
+                conf.getBytes("nchdfs.copyBufferSize"));
+        writer.setReadAhead(conf.getBoolean("nchdfs.readAhead"));
+        writer.setCompression(aligner.estimator());
+        writer.setLargeFile(conf.getBoolean("nchdfs.largeFile"));
+        writer.setStaging(staging);
+        writer.setConcurrency(writers);
+        writer.setSource(source.identity());
+        try (Metrics.Timer t = Metrics.time("file.write")) {
+            if (target != null) {
+                writer.write(va, target);
+            } else {
+                writer.write(va, progressPipe);
+            }
+        }
+        LOG.info("Finished input file: {}", ncfile.getLocation());
+        return meta;
+    }
+}
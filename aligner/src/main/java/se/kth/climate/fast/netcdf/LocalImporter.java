@@ -24,7 +24,6 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.typesafe.config.Config;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -33,12 +32,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.climate.fast.common.Metadata;
 import se.kth.climate.fast.common.MetadataBuilder;
-import se.kth.climate.fast.netcdf.aligner.AssignmentQualityMeasure;
-import se.kth.climate.fast.netcdf.aligner.BlockAligner;
-import se.kth.climate.fast.netcdf.aligner.MeasureRegister;
-import se.kth.climate.fast.netcdf.aligner.VariableAlignment;
-import se.kth.climate.fast.netcdf.metadata.MetaConverter;
-import ucar.nc2.NetcdfFile;
 
 /**
  *
@@ -48,39 +41,45 @@ public class LocalImporter implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(LocalImporter.class);
 
-    private final NetcdfFile[] ncfiles;
+    private final List<ImportSource> sources;
     private final Config conf;
     private final File target;
 
-    public LocalImporter(NetcdfFile[] ncfiles, Config conf, File target) {
-        this.ncfiles = ncfiles;
+    public LocalImporter(List<ImportSource> sources, Config conf, File target) {
+        this.sources = sources;
         this.conf = conf;
         this.target = target;
     }
 
     @Override
     public void run() {
-        long blockSize = conf.getBytes("nchdfs.blockSize");
-        AssignmentQualityMeasure aqm = MeasureRegister.fromConfig(conf);
-        LocalSink ls = new LocalSink();
+        boolean resume = conf.getBoolean("nchdfs.resume");
+        final BlockManifest manifest;
+        try {
+            manifest = BlockManifest.open(new BlockManifest.LocalStore(target, resume), resume);
+        } catch (IOException ex) {
+            LOG.error("Could not open manifest.", ex);
+            throw new RuntimeException(ex);
+        }
+        final Staging staging;
+        try {
+            staging = Staging.fromConfig(conf, target);
+        } catch (IOException ex) {
+            LOG.error("Could not set up staging.", ex);
+            throw new RuntimeException(ex);
+        }
+        LocalSink ls = new LocalSink(manifest);
         ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
         ListenableFuture lsF = executor.submit(ls);
-        List<Metadata> metas = new ArrayList<>(ncfiles.length);
-        NetCDFWriter writer = new NetCDFWriter();
         try {
-            for (NetcdfFile ncfile : ncfiles) {
-                LOG.info("Processing input file {}", ncfile.getLocation());
-                MetaInfo mInfo = MetaInfo.fromNetCDF(ncfile);
-                Metadata meta = MetaConverter.convert(ncfile, mInfo);
-                metas.add(meta);
-                BlockAligner aligner = new BlockAligner(blockSize, mInfo, aqm, conf);
-                VariableAlignment va = aligner.align();
-                LOG.info("Chosen alignment: {}", va);
-                writer.write(va, ls.progressPipe);
-                LOG.info("Finished input file: {}", ncfile.getLocation());
-            }
+            ImportPool pool = new ImportPool(conf, manifest);
+            pool.setStaging(staging);
+            List<Metadata> metas = pool.run(sources, ls.progressPipe);
             Metadata metameta = MetadataBuilder.merge(metas);
+            NetCDFWriter writer = new NetCDFWriter();
+            writer.setStaging(staging);
             writer.writeMeta(metameta, ls.progressPipe);
+            writer.writeReport(pool.report(), ls.progressPipe);
         } catch (IOException ex) {
             LOG.error("Error during processing.", ex);
             throw new RuntimeException(ex);
@@ -88,16 +87,30 @@ public class LocalImporter implements Runnable {
         ls.progressPipe.complete();
         try {
             lsF.get();
-            LOG.info("Processing of all files complete.");
+            LOG.info("Processing of all files complete. {}", ls.progressPipe.stats());
         } catch (InterruptedException | ExecutionException ex) {
             LOG.error("Error during processing.", ex);
             throw new RuntimeException(ex);
+        } finally {
+            executor.shutdown();
+            staging.close();
+            try {
+                manifest.close();
+            } catch (IOException ex) {
+                LOG.warn("Could not close manifest.", ex);
+            }
         }
     }
 
     public class LocalSink implements Runnable {
 
-        final WorkQueue<File> progressPipe = new WorkQueue<>(conf.getInt("nchdfs.bufferSize"));
+        final WorkQueue<File> progressPipe = new WorkQueue<>(conf.getInt("nchdfs.bufferSize"),
+                conf.getBytes("nchdfs.bufferBytes"), File::length);
+        private final BlockManifest manifest;
+
+        LocalSink(BlockManifest manifest) {
+            this.manifest = manifest;
+        }
 
         @Override
         public void run() {
@@ -106,7 +119,15 @@ public class LocalImporter implements Runnable {
                     Optional<File> fo = progressPipe.take();
                     if (fo.isPresent()) {
                         File f = fo.get();
+                        long size = f.length();
+                        File old = new File(target, f.getName());
+                        if (old.exists() && !old.delete()) { // incomplete leftover of an earlier run
+                            LOG.warn("Could not replace existing file {}", old.getAbsolutePath());
+                        }
                         FileUtils.moveFileToDirectory(f, target, false);
+                        if (NetCDFUtils.isBlock(f.getName())) {
+                            manifest.record(f.getName(), size);
+                        }
                     } else {
                         return;
                     }
@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Ints;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.IndexIterator;
+
+/**
+ * Writes a NetCDF classic file sequentially to an {@link OutputStream}.
+ * <p>
+ * Unlike {@link ucar.nc2.NetcdfFileWriter}, which needs a random access file
+ * on local disk, this computes the whole layout from the header up front, so
+ * the file size is known before the first byte is written and data can be
+ * streamed straight to its destination. Only what {@link NetCDFWriter} needs
+ * is supported: dimensions and variables of the classic types, without
+ * attributes.
+ * <p>
+ * Files that don't fit the 2GB offsets of the classic format are written in
+ * the 64-bit offset format (CDF-2) instead.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class NetCDF3StreamWriter {
+
+    static final byte[] MAGIC = new byte[]{'C', 'D', 'F', 1};
+    static final byte[] MAGIC_64BIT_OFFSET = new byte[]{'C', 'D', 'F', 2};
+    static final long MAX_VSIZE = 0xFFFFFFFFL;
+    static final int NC_DIMENSION = 0x0A;
+    static final int NC_VARIABLE = 0x0B;
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] ZEROS = new byte[8];
+
+    /**
+     * Provides the data for a variable.
+     */
+    public interface DataSource {
+
+        /**
+         * Read {@code count} slices of {@code varName} along its outermost
+         * dimension, starting at {@code start} (relative to the block).
+         * Scalars are read with {@code start=0} and {@code count=1}.
+         *
+         * @param varName
+         * @param start
+         * @param count
+         * @return the data in the variable's output type
+         * @throws IOException
+         */
+        public Array read(String varName, int start, int count) throws IOException;
+    }
+
+    private final ImmutableList<Dim> dims;
+    private final ImmutableList<Var> vars;
+    private final Dim recordDim;
+    private final boolean largeFile;
+    private final long headerSize;
+    private final long recordStart;
+    private final long recordSize;
+    private final long totalSize;
+
+    private NetCDF3StreamWriter(List<Dim> dims, List<Var> vars, boolean largeFile) throws IOException {
+        this.dims = ImmutableList.copyOf(dims);
+        this.vars = ImmutableList.copyOf(vars);
+        this.recordDim = findRecordDim();
+        this.largeFile = largeFile || layout(NetCDFConstants.N_SIZE) > Integer.MAX_VALUE;
+        this.headerSize = layout(offsetSize());
+        List<Var> recVars = recordVars();
+        long offset = headerSize;
+        for (Var v : vars) {
+            if (!v.record) {
+                offset += v.vsize;
+            }
+        }
+        this.recordStart = offset;
+        long rs = 0;
+        for (Var v : recVars) {
+            rs += v.vsize;
+        }
+        if (recVars.size() == 1) {
+            rs = recVars.get(0).sliceBytes; // a single record variable is not padded
+        }
+        this.recordSize = rs;
+        this.totalSize = recordStart + numRecords() * recordSize;
+        Var last = recVars.isEmpty() ? (vars.isEmpty() ? null : vars.get(vars.size() - 1)) : recVars.get(recVars.size() - 1);
+        for (Var v : vars) {
+            if (v.vsize > MAX_VSIZE && v != last) {
+                throw new IOException("Variable " + v.name + " has " + v.vsize + " bytes, but only the last variable may be larger than 4GB.");
+            }
+        }
+    }
+
+    /**
+     * Computes the header size and the begin of every variable for offsets of
+     * {@code offsetSize}.
+     *
+     * @return the largest begin
+     */
+    private long layout(long offsetSize) {
+        long hs = MAGIC.length + NetCDFConstants.N_SIZE; // magic numrecs
+        hs += listHeader();
+        for (Dim d : dims) {
+            hs += nameSize(d.name) + NetCDFConstants.N_SIZE; // name dim_length
+        }
+        hs += listHeader(); // gatt_list
+        hs += listHeader();
+        for (Var v : vars) {
+            hs += nameSize(v.name);
+            hs += NetCDFConstants.N_SIZE + NetCDFConstants.N_SIZE * v.dims.size(); // nelems [dimid ...]
+            hs += listHeader(); // vatt_list
+            hs += NetCDFConstants.DTYPE_SIZE + NetCDFConstants.N_SIZE + offsetSize; // nc_type vsize begin
+        }
+        long offset = hs;
+        long maxBegin = hs;
+        for (Var v : vars) {
+            if (!v.record) {
+                v.begin = offset;
+                maxBegin = offset;
+                offset += v.vsize;
+            }
+        }
+        for (Var v : recordVars()) {
+            v.begin = offset;
+            maxBegin = offset;
+            offset += v.vsize;
+        }
+        return maxBegin;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the exact number of bytes {@link #write} will produce
+     */
+    public long size() {
+        return totalSize;
+    }
+
+    public long headerSize() {
+        return headerSize;
+    }
+
+    /**
+     * @return whether the file is written with 64-bit offsets
+     */
+    public boolean isLargeFile() {
+        return largeFile;
+    }
+
+    public void write(OutputStream os, DataSource source) throws IOException {
+        write(os, source, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #write(OutputStream, DataSource)}, but never asks
+     * {@code source} for much more than {@code chunkBytes} at once.
+     * <p>
+     * Variables are read in runs of slices along their outermost dimension,
+     * record variables in runs of whole records. A single slice or record is
+     * never split, so that is the lower bound of a chunk.
+     *
+     * @param os
+     * @param source
+     * @param chunkBytes
+     * @throws IOException
+     */
+    public void write(OutputStream os, DataSource source, long chunkBytes) throws IOException {
+        CountingOutputStream counted = new CountingOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(counted);
+        writeHeader(out);
+        List<Chunk> order = readOrder(chunkBytes);
+        int i = 0;
+        for (Var v : vars) {
+            if (!v.record) {
+                for (; i < order.size() && order.get(i).var.equals(v.name); i++) {
+                    Chunk c = order.get(i);
+                    ByteBuffer data = fileBytes(v.type, source.read(c.var, c.start, c.count));
+                    out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                }
+                pad(out, v.vsize - v.bytes());
+            }
+        }
+        List<Var> recVars = recordVars();
+        boolean padRecords = recVars.size() > 1;
+        Map<Var, ByteBuffer> runs = new HashMap<>();
+        while (i < order.size()) { // a run of records, read for every record variable
+            int count = order.get(i).count;
+            for (Var v : recVars) {
+                Chunk c = order.get(i++);
+                runs.put(v, fileBytes(v.type, source.read(c.var, c.start, c.count)));
+            }
+            for (int r = 0; r < count; r++) {
+                for (Var v : recVars) {
+                    ByteBuffer data = runs.get(v);
+                    int sliceBytes = Ints.checkedCast(v.sliceBytes);
+                    out.write(data.array(), data.arrayOffset() + data.position() + r * sliceBytes, sliceBytes);
+                    if (padRecords) {
+                        pad(out, v.vsize - v.sliceBytes);
+                    }
+                }
+            }
+        }
+        out.flush();
+        if (counted.getCount() != totalSize) {
+            throw new IOException("Wrote " + counted.getCount() + " bytes, but the layout was computed for " + totalSize + " bytes!");
+        }
+    }
+
+    /**
+     * The reads {@link #write(OutputStream, DataSource, long)} makes, in the
+     * order it makes them.
+     *
+     * @param chunkBytes
+     * @return
+     */
+    public List<Chunk> readOrder(long chunkBytes) {
+        List<Chunk> order = new ArrayList<>();
+        for (Var v : vars) {
+            if (!v.record) {
+                if (v.dims.isEmpty()) {
+                    order.add(new Chunk(v.name, 0, 1));
+                } else {
+                    int length = v.dims.get(0).length;
+                    int step = chunkLength(length, v.bytes() / Math.max(1, length), chunkBytes);
+                    for (int start = 0; start < length; start += step) {
+                        order.add(new Chunk(v.name, start, Math.min(step, length - start)));
+                    }
+                }
+            }
+        }
+        List<Var> recVars = recordVars();
+        if (!recVars.isEmpty()) {
+            int numrecs = numRecords();
+            int step = chunkLength(numrecs, recordBytes(recVars), chunkBytes);
+            for (int start = 0; start < numrecs; start += step) {
+                for (Var v : recVars) {
+                    order.add(new Chunk(v.name, start, Math.min(step, numrecs - start)));
+                }
+            }
+        }
+        return order;
+    }
+
+    private static long recordBytes(List<Var> recVars) {
+        long recordBytes = 0;
+        for (Var v : recVars) {
+            recordBytes += v.sliceBytes;
+        }
+        return recordBytes;
+    }
+
+    /**
+     * @return how many slices of {@code sliceBytes} fit into
+     * {@code chunkBytes}, at least one and at most {@code length}
+     */
+    static int chunkLength(int length, long sliceBytes, long chunkBytes) {
+        if (sliceBytes <= 0) {
+            return Math.max(1, length);
+        }
+        return (int) Math.max(1, Math.min(length, chunkBytes / sliceBytes));
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.write(largeFile ? MAGIC_64BIT_OFFSET : MAGIC);
+        out.writeInt(numRecords());
+        if (dims.isEmpty()) {
+            writeAbsent(out);
+        } else {
+            out.writeInt(NC_DIMENSION);
+            out.writeInt(dims.size());
+            for (Dim d : dims) {
+                writeName(out, d.name);
+                out.writeInt(d == recordDim ? 0 : d.length);
+            }
+        }
+        writeAbsent(out); // gatt_list
+        if (vars.isEmpty()) {
+            writeAbsent(out);
+        } else {
+            out.writeInt(NC_VARIABLE);
+            out.writeInt(vars.size());
+            for (Var v : vars) {
+                writeName(out, v.name);
+                out.writeInt(v.dims.size());
+                for (Dim d : v.dims) {
+                    out.writeInt(dims.indexOf(d));
+                }
+                writeAbsent(out); // vatt_list
+                out.writeInt(typeCode(v.type));
+                out.writeInt((int) Math.min(v.vsize, MAX_VSIZE)); // unsigned
+                writeOffset(out, v.begin);
+            }
+        }
+    }
+
+    private void writeOffset(DataOutputStream out, long offset) throws IOException {
+        if (largeFile) {
+            out.writeLong(offset);
+        } else {
+            out.writeInt((int) offset);
+        }
+    }
+
+    private int offsetSize() {
+        return largeFile ? NetCDFConstants.OFFSET_SIZE : NetCDFConstants.N_SIZE;
+    }
+
+    /**
+     * The values of {@code data} as they are laid out in the file, i.e. big
+     * endian, in a heap buffer.
+     */
+    private static ByteBuffer fileBytes(DataType type, Array data) throws IOException {
+        long size = data.getSize() * type.getSize();
+        ByteBuffer bytes = null;
+        if (data.getDataType() == type) {
+            try {
+                bytes = data.getDataAsByteBuffer();
+            } catch (UnsupportedOperationException ex) {
+                bytes = null;
+            }
+        }
+        if (bytes == null || !bytes.hasArray() || bytes.order() != ByteOrder.BIG_ENDIAN || bytes.remaining() != size) {
+            bytes = ByteBuffer.allocate(Ints.checkedCast(size)); // big endian
+            putValues(bytes, type, data.getIndexIterator(), data.getSize());
+            bytes.flip();
+        }
+        return bytes;
+    }
+
+    private static void putValues(ByteBuffer out, DataType type, IndexIterator it, long n) throws IOException {
+        switch (type) {
+            case BYTE:
+                for (long i = 0; i < n; i++) {
+                    out.put(it.getByteNext());
+                }
+                break;
+            case CHAR:
+                for (long i = 0; i < n; i++) {
+                    out.put((byte) it.getCharNext());
+                }
+                break;
+            case SHORT:
+                for (long i = 0; i < n; i++) {
+                    out.putShort(it.getShortNext());
+                }
+                break;
+            case INT:
+                for (long i = 0; i < n; i++) {
+                    out.putInt(it.getIntNext());
+                }
+                break;
+            case FLOAT:
+                for (long i = 0; i < n; i++) {
+                    out.putFloat(it.getFloatNext());
+                }
+                break;
+            case DOUBLE:
+                for (long i = 0; i < n; i++) {
+                    out.putDouble(it.getDoubleNext());
+                }
+                break;
+            default:
+                throw new IOException("Type " + type + " is not supported by the classic format.");
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        pad(out, padding(bytes.length));
+    }
+
+    private static void writeAbsent(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    private static void pad(DataOutputStream out, long n) throws IOException {
+        while (n > 0) {
+            int len = (int) Math.min(n, ZEROS.length);
+            out.write(ZEROS, 0, len);
+            n -= len;
+        }
+    }
+
+    static long padding(long size) {
+        return (NetCDFConstants.PADDING_SIZE - (size % NetCDFConstants.PADDING_SIZE)) % NetCDFConstants.PADDING_SIZE;
+    }
+
+    private static long listHeader() {
+        return NetCDFConstants.TAG_SIZE + NetCDFConstants.N_SIZE; // also the size of ABSENT
+    }
+
+    private static long nameSize(String name) {
+        long len = name.getBytes(Charsets.UTF_8).length;
+        return NetCDFConstants.N_SIZE + len + padding(len);
+    }
+
+    static int typeCode(DataType type) throws IOException {
+        switch (type) {
+            case BYTE:
+                return 1;
+            case CHAR:
+                return 2;
+            case SHORT:
+                return 3;
+            case INT:
+                return 4;
+            case FLOAT:
+                return 5;
+            case DOUBLE:
+                return 6;
+            default:
+                throw new IOException("Type " + type + " is not supported by the classic format.");
+        }
+    }
+
+    private Dim findRecordDim() {
+        for (Dim d : dims) {
+            if (d.unlimited) {
+                boolean outermost = true;
+                for (Var v : vars) {
+                    if (v.dims.contains(d) && !v.dims.get(0).equals(d)) {
+                        outermost = false;
+                    }
+                }
+                if (outermost) {
+                    for (Var v : vars) {
+                        if (!v.dims.isEmpty() && v.dims.get(0).equals(d)) {
+                            v.markRecord();
+                        }
+                    }
+                    return d; // only one record dimension is allowed
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<Var> recordVars() {
+        List<Var> recVars = new ArrayList<>();
+        for (Var v : vars) {
+            if (v.record) {
+                recVars.add(v);
+            }
+        }
+        return recVars;
+    }
+
+    private int numRecords() {
+        return recordDim == null ? 0 : recordDim.length;
+    }
+
+    private static class Dim {
+
+        final String name;
+        final int length;
+        final boolean unlimited;
+
+        Dim(String name, int length, boolean unlimited) {
+            this.name = name;
+            this.length = length;
+            this.unlimited = unlimited;
+        }
+    }
+
+    private static class Var {
+
+        final String name;
+        final DataType type;
+        final ImmutableList<Dim> dims;
+        boolean record = false;
+        long sliceElements; // elements per record, or all elements
+        long sliceBytes;
+        long vsize;
+        long begin;
+
+        Var(String name, DataType type, List<Dim> dims) throws IOException {
+            typeCode(type); // fail early on unsupported types
+            this.name = name;
+            this.type = type;
+            this.dims = ImmutableList.copyOf(dims);
+            computeSizes();
+        }
+
+        final void markRecord() {
+            record = true;
+            computeSizes();
+        }
+
+        private void computeSizes() {
+            long elems = 1;
+            for (int i = record ? 1 : 0; i < dims.size(); i++) {
+                elems *= dims.get(i).length;
+            }
+            sliceElements = elems;
+            sliceBytes = elems * type.getSize();
+            vsize = sliceBytes + padding(sliceBytes);
+        }
+
+        long bytes() {
+            return sliceBytes;
+        }
+    }
+
+    /**
+     * {@code count} slices of a variable along its outermost dimension,
+     * starting at {@code start}.
+     */
+    public static class Chunk {
+
+        public final String var;
+        public final int start;
+        public final int count;
+
+        public Chunk(String var, int start, int count) {
+            this.var = var;
+            this.start = start;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Chunk) {
+                Chunk that = (Chunk) o;
+                return this.var.equals(that.var) && this.start == that.start && this.count == that.count;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(var, start, count);
+        }
+
+        @Override
+        public String toString() {
+            return var + "[" + start + "+" + count + "]";
+        }
+    }
+
+    public static class Builder {
+
+        private final List<Dim> dims = new ArrayList<>();
+        private final Map<String, Dim> dimIndex = new HashMap<>();
+        private final List<Var> vars = new ArrayList<>();
+        private boolean largeFile = false;
+
+        private Builder() {
+        }
+
+        /**
+         * Always use 64-bit offsets, not only when the file needs them.
+         */
+        public Builder largeFile(boolean largeFile) {
+            this.largeFile = largeFile;
+            return this;
+        }
+
+        public Builder addDimension(String name, int length, boolean unlimited) {
+            Dim d = new Dim(name, length, unlimited);
+            if (dimIndex.put(name, d) != null) {
+                throw new IllegalArgumentException("Duplicate dimension " + name);
+            }
+            dims.add(d);
+            return this;
+        }
+
+        public Builder addVariable(String name, DataType type, List<String> dimNames) throws IOException {
+            List<Dim> vdims = new ArrayList<>(dimNames.size());
+            for (String dimName : dimNames) {
+                Dim d = dimIndex.get(dimName);
+                if (d == null) {
+                    throw new IllegalArgumentException("Unknown dimension " + dimName + " for variable " + name);
+                }
+                vdims.add(d);
+            }
+            vars.add(new Var(name, type, vdims));
+            return this;
+        }
+
+        public NetCDF3StreamWriter build() throws IOException {
+            return new NetCDF3StreamWriter(dims, vars, largeFile);
+        }
+    }
+}
@@ -17,24 +17,46 @@
  */
 package se.kth.climate.fast.netcdf;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 import com.google.common.primitives.Ints;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import static se.kth.climate.fast.FASTConstants.META_NAME;
+import static se.kth.climate.fast.FASTConstants.REPORT_NAME;
 import se.kth.climate.fast.common.Metadata;
+import static se.kth.climate.fast.netcdf.NetCDFConstants.COMPRESSED_SUFFIX;
 import static se.kth.climate.fast.netcdf.NetCDFConstants.SUFFIX;
+import se.kth.climate.fast.netcdf.NetCDF3StreamWriter.Chunk;
+import se.kth.climate.fast.netcdf.aligner.CompressionEstimator;
 import se.kth.climate.fast.netcdf.aligner.VariableAlignment;
 import se.kth.climate.fast.netcdf.aligner.VariableAssignment;
 import se.kth.climate.fast.netcdf.aligner.VariableFit;
@@ -58,16 +80,160 @@ public class NetCDFWriter {
 
     static final Logger LOG = LoggerFactory.getLogger(NetCDFWriter.class);
 
-    private final File tmpDir;
+    public static final long DEFAULT_CHUNK_BYTES = 8 * 1024 * 1024;
 
-    {
-        tmpDir = Files.createTempDir();
-        tmpDir.deleteOnExit();
+    private File tmpDir;
+    private final int threads;
+    private final BlockManifest manifest;
+    private final FillReport report;
+    private final long chunkBytes;
+    private final ChunkCache chunkCache;
+    private boolean readAhead = false;
+    private CompressionEstimator compression = CompressionEstimator.none();
+    private boolean largeFile = false;
+    private Staging staging = Staging.tmp();
+    private AdaptiveLimit writers = null;
+    private String source = null;
+
+    public NetCDFWriter() {
+        this(1);
+    }
+
+    /**
+     * @param threads number of blocks that are written concurrently
+     */
+    public NetCDFWriter(int threads) {
+        this(threads, BlockManifest.none());
+    }
+
+    /**
+     * @param threads number of blocks that are written concurrently
+     * @param manifest blocks listed as complete in here are skipped
+     */
+    public NetCDFWriter(int threads, BlockManifest manifest) {
+        this(threads, manifest, new FillReport(-1));
+    }
+
+    /**
+     * @param threads number of blocks that are written concurrently
+     * @param manifest blocks listed as complete in here are skipped
+     * @param report every written block is added to this
+     */
+    public NetCDFWriter(int threads, BlockManifest manifest, FillReport report) {
+        this(threads, manifest, report, DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * @param threads number of blocks that are written concurrently
+     * @param manifest blocks listed as complete in here are skipped
+     * @param report every written block is added to this
+     * @param chunkBytes how much of a variable is read and written at once,
+     * four times as much is kept of chunked sources whose chunks are cut by a
+     * block or copy boundary
+     */
+    public NetCDFWriter(int threads, BlockManifest manifest, FillReport report, long chunkBytes) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one writer thread, got " + threads);
+        }
+        if (chunkBytes < 1) {
+            throw new IllegalArgumentException("Need a positive copy buffer size, got " + chunkBytes);
+        }
+        this.threads = threads;
+        this.manifest = manifest;
+        this.report = report;
+        this.chunkBytes = chunkBytes;
+        this.chunkCache = new ChunkCache(Math.min(Long.MAX_VALUE / 4, chunkBytes) * 4);
+    }
+
+    /**
+     * @param readAhead read the next chunk of a block on a second thread while
+     * the current one is written
+     */
+    public void setReadAhead(boolean readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * @param compression if enabled, blocks are written gzip compressed with
+     * its level, and reported against its estimates
+     */
+    public void setCompression(CompressionEstimator compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @param largeFile write all blocks with 64-bit offsets (CDF-2), instead of
+     * only those beyond the 2GB offsets of the classic format
+     */
+    public void setLargeFile(boolean largeFile) {
+        this.largeFile = largeFile;
+    }
+
+    /**
+     * @param staging where blocks are written before they are handed to the
+     * progress pipe
+     */
+    public void setStaging(Staging staging) {
+        this.staging = staging;
+    }
+
+    /**
+     * @param writers bounds the blocks written at once, shared by the writers
+     * of an import, and adapted to their throughput
+     */
+    public void setConcurrency(AdaptiveLimit writers) {
+        this.writers = writers;
+    }
+
+    /**
+     * @param source identity of the input, recorded in the manifest with each
+     * block (see {@link BlockManifest#sourceIdentity(List)}); defaults to that
+     * of the file being written
+     */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    private synchronized File tmpDir() throws IOException {
+        if (tmpDir == null) {
+            tmpDir = staging.newDir();
+        }
+        return tmpDir;
     }
 
     public void write(VariableAlignment va, WorkQueue<File> progressPipe) throws IOException {
         final Map<String, VariableMapping<?, ?>> mappings = new HashMap<>();
         final Map<String, VariableMapping.MapperFactory<?, ?>> mapperFactories = new HashMap<>();
+        prepareMappings(va, mappings, mapperFactories);
+        writeAll(descriptors(va),
+                gated((dd, source, space) -> writeBlock(dd, source, space, mappings, mapperFactories), File::length),
+                (f) -> {
+                    if (progressPipe != null) {
+                        progressPipe.put(f);
+                    }
+                }, true);
+    }
+
+    /**
+     * Streams the blocks straight into {@code target} without staging them in
+     * the local temporary directory.
+     *
+     * @param va
+     * @param target
+     * @throws IOException
+     */
+    public void write(VariableAlignment va, BlockTarget target) throws IOException {
+        final Map<String, VariableMapping<?, ?>> mappings = new HashMap<>();
+        final Map<String, VariableMapping.MapperFactory<?, ?>> mapperFactories = new HashMap<>();
+        prepareMappings(va, mappings, mapperFactories);
+        writeAll(descriptors(va),
+                gated((dd, source, space) -> streamBlock(dd, source, target, mappings, mapperFactories), Pair::getValue1),
+                (block) -> target.commit(block.getValue0(), block.getValue1()), false);
+    }
+
+    private void prepareMappings(VariableAlignment va,
+            Map<String, VariableMapping<?, ?>> mappings,
+            Map<String, VariableMapping.MapperFactory<?, ?>> mapperFactories) {
         if (va.size() != 0) {
             VariableFit vf = va.fits.get(0);
             if (vf.dataDescriptors.size() != 0) {
@@ -82,94 +248,525 @@ public class NetCDFWriter {
                 }
             }
         }
+    }
+
+    private List<DataDescriptor> descriptors(VariableAlignment va) {
+        final List<DataDescriptor> dds = new ArrayList<>();
         for (Pair<VariableAssignment, VariableFit> pvv : va) {
-            final VariableAssignment vas = pvv.getValue0();
-            final VariableFit vf = pvv.getValue1();
-            for (DataDescriptor dd : vf.dataDescriptors) {
-                FileInfo fi;
-                if (dd.splitDim.isPresent()) {
-                    DimensionRange dr = dd.dims.get(dd.splitDim.get());
-                    ImmutableList<String> vars = ImmutableList.copyOf(Collections2.filter(dd.vars,
-                            Predicates.not(Predicates.equalTo(dd.splitDim.get()))));
-                    Variable dimV = dd.metaInfo.getVariable(dd.splitDim.get());
-                    if (dimV == null || (dimV.getDimensions().size() != 1)) {
-                        fi = new FileInfo(vars, dr);
-                    } else { // single dimension variable
-                        Array data = dimV.read(); // maybe too big, but should be ok
-                        Optional<TypedRange> tr = TypedRange.fromArray(data, Ints.checkedCast(dr.start), Ints.checkedCast(dr.end));
-                        if (tr.isPresent()) {
-                            fi = new FileInfo(vars, tr.get(), dr);
-                        } else {
-                            fi = new FileInfo(vars, dr);
+            dds.addAll(pvv.getValue1().dataDescriptors);
+        }
+        return dds;
+    }
+
+    private <R> BlockJob<R> gated(BlockJob<R> job, ToLongFunction<R> bytes) {
+        if (writers == null || !writers.isEnabled()) {
+            return job;
+        }
+        return (dd, source, space) -> {
+            writers.acquire();
+            R result = null;
+            try {
+                result = job.run(dd, source, space);
+                return result;
+            } finally {
+                writers.release(result == null ? 0 : bytes.applyAsLong(result), result != null);
+            }
+        };
+    }
+
+    /**
+     * @param staged whether the blocks are staged, and need staging space
+     * reserved
+     */
+    private <R> void writeAll(List<DataDescriptor> allDds, BlockJob<R> job, BlockSink<R> sink, boolean staged) throws IOException {
+        List<DataDescriptor> dds = pending(allDds);
+        if (threads == 1 || dds.size() < 2) {
+            for (DataDescriptor dd : dds) {
+                Staging.Reservation space = staged ? staging.reserve(stagedBytes(dd)) : null;
+                sink.accept(run(job, dd, dd.metaInfo.ncfile, space));
+            }
+        } else {
+            writeParallel(dds, job, sink, staged);
+        }
+        LOG.debug("Source {}", chunkCache);
+    }
+
+    private List<DataDescriptor> pending(List<DataDescriptor> dds) throws IOException {
+        if (!manifest.isEnabled()) {
+            return dds;
+        }
+        List<DataDescriptor> todo = new ArrayList<>(dds.size());
+        for (DataDescriptor dd : dds) {
+            String src = source != null ? source
+                    : BlockManifest.sourceIdentity(Collections.singletonList(new File(dd.metaInfo.ncfile.getLocation())));
+            String fname = fileName(dd, dd.metaInfo.ncfile);
+            if (manifest.isComplete(fname, src)) {
+                LOG.info("Skipping block {}, it is already complete.", fname);
+            } else {
+                manifest.expect(fname, src);
+                todo.add(dd);
+            }
+        }
+        return todo;
+    }
+
+    /**
+     * Writes blocks on a thread pool, but hands them to {@code sink} in
+     * descriptor order.
+     * <p>
+     * At most {@code 2*threads} blocks are in flight (written or waiting for
+     * their predecessors), so a slow consumer still throttles the writers.
+     * <p>
+     * Staging space is reserved here, in the order blocks are emitted, and not
+     * by the jobs. Otherwise a later block could hold the space that the block
+     * the sink is waiting for needs.
+     */
+    private <R> void writeParallel(List<DataDescriptor> dds, BlockJob<R> job, BlockSink<R> sink, boolean staged) throws IOException {
+        final String location = dds.get(0).metaInfo.ncfile.getLocation();
+        final int window = 2 * threads;
+        final Deque<Pair<Future<R>, Staging.Reservation>> inFlight = new ArrayDeque<>(window);
+        // the executor is shut down inside, so no worker still reads from the
+        // handles once they are closed
+        try (SourceHandles handles = new SourceHandles(location)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (DataDescriptor dd : dds) {
+                    if (inFlight.size() >= window) {
+                        emit(inFlight.poll().getValue0(), sink);
+                    }
+                    final Staging.Reservation space = staged ? reserveInOrder(dd, inFlight, sink) : null;
+                    inFlight.add(Pair.with(executor.submit(() -> {
+                        NetcdfFile source = handles.acquire();
+                        try {
+                            return run(job, dd, source, space);
+                        } finally {
+                            handles.release(source);
                         }
+                    }), space));
+                }
+                while (!inFlight.isEmpty()) {
+                    emit(inFlight.poll().getValue0(), sink);
+                }
+            } finally {
+                inFlight.forEach(p -> p.getValue0().cancel(true));
+                executor.shutdownNow();
+                awaitTermination(executor);
+                // none of these reach the sink anymore
+                inFlight.forEach(p -> {
+                    if (p.getValue1() != null) {
+                        p.getValue1().release();
                     }
+                });
+            }
+        }
+    }
+
+    /**
+     * Waits for staging space for {@code dd}, emitting finished blocks in the
+     * meantime, since only the sink frees space.
+     */
+    private <R> Staging.Reservation reserveInOrder(DataDescriptor dd,
+            Deque<Pair<Future<R>, Staging.Reservation>> inFlight, BlockSink<R> sink) throws IOException {
+        long bytes = stagedBytes(dd);
+        while (true) {
+            Staging.Reservation space = staging.reserve(bytes, Staging.RECLAIM_INTERVAL_MS);
+            if (space != null) {
+                return space;
+            }
+            if (!inFlight.isEmpty() && inFlight.peek().getValue0().isDone()) {
+                emit(inFlight.poll().getValue0(), sink);
+            }
+        }
+    }
+
+    /**
+     * Runs {@code job}, returning {@code space} if it fails.
+     */
+    private static <R> R run(BlockJob<R> job, DataDescriptor dd, NetcdfFile source, Staging.Reservation space) throws IOException {
+        boolean done = false;
+        try {
+            R result = job.run(dd, source, space);
+            done = true;
+            return result;
+        } finally {
+            if (!done && space != null) {
+                space.release();
+            }
+        }
+    }
+
+    private long stagedBytes(DataDescriptor dd) {
+        long size = dd.estimateSize();
+        return compression.isEnabled() ? gzipBound(size) : size;
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                LOG.warn("Still waiting for block writers to stop.");
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <R> void emit(Future<R> resultF, BlockSink<R> sink) throws IOException {
+        try {
+            sink.accept(resultF.get());
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private String fileName(DataDescriptor dd, NetcdfFile source) throws IOException {
+        FileInfo fi;
+        if (dd.splitDim.isPresent()) {
+            DimensionRange dr = dd.dims.get(dd.splitDim.get());
+            ImmutableList<String> vars = ImmutableList.copyOf(Collections2.filter(dd.vars,
+                    Predicates.not(Predicates.equalTo(dd.splitDim.get()))));
+            Variable dimV = source.findVariable(dd.splitDim.get());
+            if (dimV == null || (dimV.getDimensions().size() != 1)) {
+                fi = new FileInfo(vars, dr);
+            } else { // single dimension variable
+                Array data = dd.metaInfo.coordinateValues(dimV);
+                Optional<TypedRange> tr = TypedRange.fromArray(data, Ints.checkedCast(dr.start), Ints.checkedCast(dr.end));
+                if (tr.isPresent()) {
+                    fi = new FileInfo(vars, tr.get(), dr);
                 } else {
-                    fi = new FileInfo(dd.vars.asList());
+                    fi = new FileInfo(vars, dr);
                 }
-                String fname = FileNameFormat.serialise(fi) + SUFFIX;
-                File f = tmpDir.toPath().resolve(fname).toFile();
-                if (f.createNewFile()) {
-                    try (NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, f.getAbsolutePath())) {
-                        HashMap<String, Dimension> newDims = new HashMap<>();
-                        dd.dims.values().forEach((dr) -> {
-                            Dimension d = writer.addDimension(null, dr.name, (int) dr.getSize());
-                            d.setUnlimited(dr.inf);
-                            newDims.put(dr.name, d);
-                        });
-                        HashMap<String, Pair<Variable, Optional<VariableMapping.Mapper>>> newVars = new HashMap<>();
-                        dd.vars.forEach((varName) -> {
-                            Variable vOld = dd.metaInfo.getVariable(varName);
-                            if (mappings.containsKey(varName)) {
-                                VariableMapping<?, ?> mapping = mappings.get(varName);
-                                VariableMapping.MapperFactory<?, ?> factory = mapperFactories.get(varName);
-                                List<Dimension> vdims = vOld.getDimensions().stream().map(
-                                        (d) -> newDims.get(d.getFullName())
-                                ).collect(Collectors.toList());
-                                Variable vNew = writer.addVariable(null, varName, mapping.outputType(), vdims);
-                                VariableMapping.Mapper<?, ?> mapper = factory.mapper(vOld);
-                                newVars.put(varName, Pair.with(vNew, Optional.of(mapper)));
-                            } else {
-                                List<Dimension> vdims = vOld.getDimensions().stream().map(
-                                        (d) -> newDims.get(d.getFullName())
-                                ).collect(Collectors.toList());
-                                Variable vNew = writer.addVariable(null, varName, vOld.getDataType(), vdims);
-                                newVars.put(varName, Pair.with(vNew, Optional.absent()));
-                            }
-                        });
-                        writer.create();
-                        NetcdfFile origin = dd.metaInfo.ncfile;
-                        for (Pair<Variable, Optional<VariableMapping.Mapper>> p : newVars.values()) {
-                            Variable var = p.getValue0();
-                            Optional<VariableMapping.Mapper> mapperO = p.getValue1();
-                            Variable vOld = dd.metaInfo.getVariable(var.getFullName());
-                            List<Range> ranges = vOld.getDimensions().stream().map((d)
-                                    -> dd.dims.get(d.getFullName()).toRange()
-                            ).collect(Collectors.toList());
-                            Array data = vOld.read(ranges);
-                            if (mapperO.isPresent()) {
-                                Array dataMapped = mapArray(data, mapperO.get());
-                                writer.write(var, dataMapped);
-                            } else {
-                                writer.write(var, data);
-                            }
-                        }
-                    } catch (InvalidRangeException ex) {
-                        LOG.error("Error on reading/writing variable!", ex);
-                        throw new IOException(ex);
+            }
+        } else {
+            fi = new FileInfo(dd.vars.asList());
+        }
+        return FileNameFormat.serialise(fi) + (compression.isEnabled() ? COMPRESSED_SUFFIX : SUFFIX);
+    }
+
+    private Pair<String, Long> streamBlock(DataDescriptor dd, NetcdfFile source, BlockTarget target,
+            final Map<String, VariableMapping<?, ?>> mappings,
+            final Map<String, VariableMapping.MapperFactory<?, ?>> mapperFactories) throws IOException {
+        String fname = fileName(dd, source);
+        NetCDF3StreamWriter.Builder builder = NetCDF3StreamWriter.builder().largeFile(largeFile);
+        for (DimensionRange dr : dd.dims.values()) {
+            builder.addDimension(dr.name, Ints.checkedCast(dr.getSize()), dr.inf);
+        }
+        Map<String, VariableMapping.Mapper> mappers = new HashMap<>();
+        for (String varName : dd.vars) {
+            Variable vOld = source.findVariable(varName);
+            List<String> dimNames = vOld.getDimensions().stream().map(
+                    (d) -> d.getFullName()
+            ).collect(Collectors.toList());
+            if (mappings.containsKey(varName)) {
+                builder.addVariable(varName, mappings.get(varName).outputType(), dimNames);
+                mappers.put(varName, mapperFactories.get(varName).mapper(vOld));
+            } else {
+                builder.addVariable(varName, vOld.getDataType(), dimNames);
+            }
+        }
+        NetCDF3StreamWriter sw = builder.build();
+        long size = sw.size();
+        FlightEvents.Span span = FlightEvents.blockWrite("stream");
+        try (Metrics.Timer t = Metrics.time("block.stream");
+                OutputStream os = target.create(fname, compression.isEnabled() ? gzipBound(size) : size)) {
+            CountingOutputStream counted = new CountingOutputStream(os);
+            ReadAhead.Reader<Chunk> reader = chunkReader(source, dd, mappers);
+            try (ReadAhead<Chunk> ahead = readAhead ? new ReadAhead<>(sw.readOrder(chunkBytes), reader) : null;
+                    OutputStream out = compression.isEnabled() ? new BlockGZIPOutputStream(counted, compression.level()) : counted) {
+                ReadAhead.Reader<Chunk> chunks = ahead != null ? ahead::read : reader;
+                sw.write(out, (varName, start, count) -> chunks.read(new Chunk(varName, start, count)), chunkBytes);
+            }
+            size = counted.getCount();
+            t.addBytes(size);
+        }
+        span.block(fname).bytes(size).variables(dd.vars).commit();
+        report.add(fname, dd.vars, compression.estimate(dd), size);
+        LOG.info("Streamed block {} ({} bytes).", fname, size);
+        return Pair.with(fname, size);
+    }
+
+    private File writeBlock(DataDescriptor dd, NetcdfFile source, Staging.Reservation space,
+            final Map<String, VariableMapping<?, ?>> mappings,
+            final Map<String, VariableMapping.MapperFactory<?, ?>> mapperFactories) throws IOException {
+        if (staging.isDirectIO() || compression.isEnabled()) {
+            return writeBlockStreamed(dd, source, space, mappings, mapperFactories);
+        }
+        String fname = fileName(dd, source);
+        File f = tmpDir().toPath().resolve(fname).toFile();
+        if (!f.createNewFile()) {
+            throw new IOException("File already exists: " + f.getAbsolutePath());
+        }
+        Metrics.Timer blockT = Metrics.time("block.staged");
+        FlightEvents.Span span = FlightEvents.blockWrite("staged");
+        boolean written = false;
+        try {
+            space.bind(f, dd.estimateSize());
+            try (NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, f.getAbsolutePath())) {
+                writer.setLargeFile(largeFile || dd.estimateSize() > Integer.MAX_VALUE);
+                HashMap<String, Dimension> newDims = new HashMap<>();
+                dd.dims.values().forEach((dr) -> {
+                    Dimension d = writer.addDimension(null, dr.name, Ints.checkedCast(dr.getSize()));
+                    d.setUnlimited(dr.inf);
+                    newDims.put(dr.name, d);
+                });
+                HashMap<String, Pair<Variable, Optional<VariableMapping.Mapper>>> newVars = new HashMap<>();
+                dd.vars.forEach((varName) -> {
+                    Variable vOld = source.findVariable(varName);
+                    if (mappings.containsKey(varName)) {
+                        VariableMapping<?, ?> mapping = mappings.get(varName);
+                        VariableMapping.MapperFactory<?, ?> factory = mapperFactories.get(varName);
+                        List<Dimension> vdims = vOld.getDimensions().stream().map(
+                                (d) -> newDims.get(d.getFullName())
+                        ).collect(Collectors.toList());
+                        Variable vNew = writer.addVariable(null, varName, mapping.outputType(), vdims);
+                        VariableMapping.Mapper<?, ?> mapper = factory.mapper(vOld);
+                        newVars.put(varName, Pair.with(vNew, Optional.of(mapper)));
+                    } else {
+                        List<Dimension> vdims = vOld.getDimensions().stream().map(
+                                (d) -> newDims.get(d.getFullName())
+                        ).collect(Collectors.toList());
+                        Variable vNew = writer.addVariable(null, varName, vOld.getDataType(), vdims);
+                        newVars.put(varName, Pair.with(vNew, Optional.absent()));
                     }
-                    LOG.info("Wrote file {}.", f.getAbsolutePath());
-                    if (progressPipe != null) {
-                        progressPipe.put(f);
+                });
+                writer.create();
+                Map<String, VariableMapping.Mapper> mappers = new HashMap<>();
+                List<Chunk> order = new ArrayList<>();
+                for (Map.Entry<String, Pair<Variable, Optional<VariableMapping.Mapper>>> e : newVars.entrySet()) {
+                    String varName = e.getKey();
+                    Variable var = e.getValue().getValue0();
+                    if (e.getValue().getValue1().isPresent()) {
+                        mappers.put(varName, e.getValue().getValue1().get());
                     }
-                } else {
+                    Variable vOld = source.findVariable(varName);
+                    if (vOld.getRank() == 0) {
+                        order.add(new Chunk(varName, 0, 1));
+                        continue;
+                    }
+                    int length = Ints.checkedCast(dd.dims.get(vOld.getDimension(0).getFullName()).getSize());
+                    int step = NetCDF3StreamWriter.chunkLength(length, sliceBytes(vOld, var, dd), chunkBytes);
+                    for (int start = 0; start < length; start += step) {
+                        order.add(new Chunk(varName, start, Math.min(step, length - start)));
+                    }
+                }
+                ReadAhead.Reader<Chunk> reader = chunkReader(source, dd, mappers);
+                try (ReadAhead<Chunk> ahead = readAhead ? new ReadAhead<>(order, reader) : null) {
+                    ReadAhead.Reader<Chunk> chunks = ahead != null ? ahead::read : reader;
+                    for (Chunk c : order) {
+                        Variable var = newVars.get(c.var).getValue0();
+                        int[] origin = new int[var.getRank()];
+                        if (origin.length > 0) {
+                            origin[0] = c.start;
+                        }
+                        writeChunk(writer, var, origin, chunks.read(c));
+                    }
+                }
+            } catch (InvalidRangeException ex) {
+                LOG.error("Error on reading/writing variable!", ex);
+                throw new IOException(ex);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                discard(f, space);
+            }
+        }
+        blockT.addBytes(f.length());
+        blockT.close();
+        span.block(fname).bytes(f.length()).variables(dd.vars).commit();
+        report.add(fname, dd.vars, compression.estimate(dd), f.length());
+        LOG.info("Wrote file {}.", f.getAbsolutePath());
+        return f;
+    }
+
+    /**
+     * Stages a block through {@link NetCDF3StreamWriter}, since CDM's writer
+     * can neither write with direct I/O nor into a gzip stream.
+     */
+    private File writeBlockStreamed(DataDescriptor dd, NetcdfFile source, Staging.Reservation space,
+            final Map<String, VariableMapping<?, ?>> mappings,
+            final Map<String, VariableMapping.MapperFactory<?, ?>> mapperFactories) throws IOException {
+        final File dir = tmpDir();
+        final File[] created = new File[1];
+        BlockTarget local = new BlockTarget() {
+            @Override
+            public OutputStream create(String name, long size) throws IOException {
+                File f = dir.toPath().resolve(name).toFile();
+                if (!f.createNewFile()) {
                     throw new IOException("File already exists: " + f.getAbsolutePath());
                 }
+                created[0] = f;
+                space.bind(f, size);
+                return staging.create(f);
+            }
+
+            @Override
+            public void commit(String name, long size) throws IOException {
+            }
+        };
+        boolean written = false;
+        try {
+            Pair<String, Long> block = streamBlock(dd, source, local, mappings, mapperFactories);
+            written = true;
+            return dir.toPath().resolve(block.getValue0()).toFile();
+        } finally {
+            if (!written && created[0] != null) {
+                discard(created[0], space);
+            }
+        }
+    }
+
+    /**
+     * Removes a partially staged block and returns its staging space.
+     */
+    private void discard(File f, Staging.Reservation space) {
+        if (f.exists() && !f.delete()) {
+            LOG.warn("Could not delete partial block {}.", f.getAbsolutePath());
+        }
+        space.release();
+    }
+
+    /**
+     * Largest size {@code size} bytes can have once gzip compressed (zlib's
+     * {@code compressBound} plus the gzip header and trailer).
+     */
+    private static long gzipBound(long size) {
+        return size + (size >> 12) + (size >> 14) + (size >> 25) + 13 + 18;
+    }
+
+    /**
+     * Reads and maps single chunks of the variables of a block.
+     * <p>
+     * Mapped output is written into two buffers per variable in turn, as the
+     * previous chunk may still be in use while the next one is read ahead.
+     */
+    private ReadAhead.Reader<Chunk> chunkReader(final NetcdfFile source, final DataDescriptor dd,
+            final Map<String, VariableMapping.Mapper> mappers) {
+        final Map<String, Deque<Array>> mapBuffers = new HashMap<>();
+        return (Chunk c) -> {
+            Variable vOld = source.findVariable(c.var);
+            try {
+                Array data = readChunked(vOld, dd, chunkRanges(vOld, dd, c.start, c.count));
+                VariableMapping.Mapper mapper = mappers.get(c.var);
+                if (mapper == null) {
+                    return data;
+                }
+                Deque<Array> buffers = mapBuffers.computeIfAbsent(c.var, k -> new ArrayDeque<>(2));
+                Array out = mapArray(data, mapper, buffers.size() == 2 ? buffers.pollFirst() : null);
+                buffers.addLast(out);
+                return out;
+            } catch (InvalidRangeException ex) {
+                LOG.error("Error on reading variable!", ex);
+                throw new IOException(ex);
             }
+        };
+    }
+
+    /**
+     * Reads {@code ranges} of {@code v}, going through the chunk cache when the
+     * outermost range cuts through chunks of a chunked source, so that those
+     * chunks are decompressed only once.
+     */
+    private Array readChunked(Variable v, DataDescriptor dd, List<Range> ranges) throws IOException, InvalidRangeException {
+        int[] shape = v.getRank() == 0 ? null : dd.metaInfo.chunkShape(v);
+        if (shape == null || shape[0] <= 1) {
+            return read(v, ranges);
+        }
+        Range outer = ranges.get(0);
+        int first = (outer.first() / shape[0]) * shape[0];
+        int last = Math.min(v.getDimension(0).getLength(), (outer.last() / shape[0] + 1) * shape[0]) - 1;
+        if (first == outer.first() && last == outer.last()) {
+            return read(v, ranges);
+        }
+        long alignedBytes = (long) v.getElementSize() * (last - first + 1);
+        for (Range r : ranges.subList(1, ranges.size())) {
+            alignedBytes *= r.length();
+        }
+        if (alignedBytes > chunkCache.capacity()) {
+            // couldn't be cached, so widening would only read more
+            return read(v, ranges);
+        }
+        String key = dd.metaInfo.ncfile.getLocation() + "#" + v.getFullNameEscaped()
+                + "[" + first + ":" + last + "]" + ranges.subList(1, ranges.size());
+        Array aligned = chunkCache.get(key, () -> {
+            List<Range> alignedRanges = new ArrayList<>(ranges);
+            alignedRanges.set(0, new Range(first, last));
+            return read(v, alignedRanges);
+        });
+        int[] origin = new int[v.getRank()];
+        origin[0] = outer.first() - first;
+        int[] size = aligned.getShape();
+        size[0] = outer.length();
+        return aligned.section(origin, size);
+    }
+
+    /**
+     * @return the ranges of {@code count} slices along the outermost dimension
+     * of {@code v}, starting at {@code start} relative to the block
+     */
+    private static List<Range> chunkRanges(Variable v, DataDescriptor dd, int start, int count) throws InvalidRangeException {
+        List<Range> ranges = new ArrayList<>();
+        for (Dimension d : v.getDimensions()) {
+            DimensionRange dr = dd.dims.get(d.getFullName());
+            if (ranges.isEmpty()) { // outermost
+                ranges.add(new DimensionRange(dr.name, dr.start + start, dr.start + start + count - 1, dr.inf).toRange());
+            } else {
+                ranges.add(dr.toRange());
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return bytes of a single slice along the outermost dimension, counting
+     * the larger of input and output element size
+     */
+    private static long sliceBytes(Variable vOld, Variable vNew, DataDescriptor dd) {
+        long elems = 1;
+        for (int i = 1; i < vOld.getRank(); i++) {
+            elems *= dd.dims.get(vOld.getDimension(i).getFullName()).getSize();
+        }
+        return elems * Math.max(vOld.getElementSize(), vNew.getElementSize());
+    }
+
+    private static void writeChunk(NetcdfFileWriter writer, Variable var, int[] origin, Array data)
+            throws IOException, InvalidRangeException {
+        try (Metrics.Timer t = Metrics.time("block.write")) {
+            t.addBytes(data.getSizeBytes());
+            writer.write(var, origin, data);
         }
     }
 
-    private Array mapArray(Array input, VariableMapping.Mapper<Object, Object> mapper) {
-        Array output = Array.factory(mapper.mapping().outputType(), input.getShape());
+    private Array read(Variable v, List<Range> ranges) throws IOException, InvalidRangeException {
+        try (Metrics.Timer t = Metrics.time("block.read")) {
+            Array data = v.read(ranges);
+            t.addBytes(data.getSizeBytes());
+            return data;
+        }
+    }
+
+    /**
+     * @param reuse written to instead of a new array, if it has the same shape
+     * as {@code input}
+     */
+    private Array mapArray(Array input, VariableMapping.Mapper<Object, Object> mapper, Array reuse) {
+        Metrics.Timer t = Metrics.time("block.map");
+        t.addBytes(input.getSizeBytes());
+        Array output = reuse != null && Arrays.equals(reuse.getShape(), input.getShape())
+                ? reuse
+                : Array.factory(mapper.mapping().outputType(), input.getShape());
         IndexIterator iterIn = input.getIndexIterator();
         IndexIterator iterOut = output.getIndexIterator();
         while (iterIn.hasNext() && iterOut.hasNext()) {
@@ -178,11 +775,12 @@ public class NetCDFWriter {
             Object o = mapper.map(iterIn.getObjectCurrent());
             iterOut.setObjectCurrent(o);           
         }
+        t.close();
         return output;
     }
 
     public void writeMeta(Metadata meta, WorkQueue<File> progressPipe) throws IOException {
-        File f = tmpDir.toPath().resolve(META_NAME).toFile();
+        File f = tmpDir().toPath().resolve(META_NAME).toFile();
         MetaSinkFactory sinkF = new GsonSink.FileFactory(f);
         try (MetaSink sink = sinkF.create()) {
             sink.sink(meta);
@@ -196,6 +794,40 @@ public class NetCDFWriter {
         }
     }
 
+    public void writeMeta(Metadata meta, BlockTarget target) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        MetaSinkFactory sinkF = new GsonSink.StreamFactory(buf);
+        try (MetaSink sink = sinkF.create()) {
+            sink.sink(meta);
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        byte[] data = buf.toByteArray();
+        try (OutputStream os = target.create(META_NAME, data.length)) {
+            os.write(data);
+        }
+        target.commit(META_NAME, data.length);
+        LOG.info("Streamed metadata file {}.", META_NAME);
+    }
+
+    public void writeReport(FillReport fillReport, WorkQueue<File> progressPipe) throws IOException {
+        File f = tmpDir().toPath().resolve(REPORT_NAME).toFile();
+        Files.write(fillReport.toJson(), f, Charsets.UTF_8);
+        LOG.info("Wrote fill report {}: {}", f.getAbsolutePath(), fillReport.summary());
+        if (progressPipe != null) {
+            progressPipe.put(f);
+        }
+    }
+
+    public void writeReport(FillReport fillReport, BlockTarget target) throws IOException {
+        byte[] data = fillReport.toJson().getBytes(Charsets.UTF_8);
+        try (OutputStream os = target.create(REPORT_NAME, data.length)) {
+            os.write(data);
+        }
+        target.commit(REPORT_NAME, data.length);
+        LOG.info("Streamed fill report: {}", fillReport.summary());
+    }
+
 //    private void printFile(File f) throws IOException {
 //        System.out.println("Written file of length " + f.length());
 //        byte[] bFile = new byte[(int) f.length()];
@@ -206,6 +838,82 @@ public class NetCDFWriter {
 //        String h = Hex.encodeHexString(bFile);
 //        System.out.println(h);
 //    }
+    @FunctionalInterface
+    private interface BlockJob<R> {
+
+        /**
+         * @param space reserved for the block if it is staged, {@code null}
+         * otherwise
+         */
+        R run(DataDescriptor dd, NetcdfFile source, Staging.Reservation space) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface BlockSink<R> {
+
+        void accept(R result) throws IOException;
+    }
+
+    /**
+     * Gzip stream with a configurable level, that leaves the underlying stream
+     * open on close, as that belongs to the caller.
+     */
+    private static class BlockGZIPOutputStream extends GZIPOutputStream {
+
+        BlockGZIPOutputStream(OutputStream os, int level) throws IOException {
+            super(os, NetCDF3StreamWriter.BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            def.end();
+            out.flush();
+        }
+    }
+
+    /**
+     * Read handles on the source file, one per concurrent block writer, since
+     * {@link NetcdfFile} instances must not be shared between threads.
+     */
+    private static class SourceHandles implements AutoCloseable {
+
+        private final String location;
+        private final BlockingQueue<NetcdfFile> idle = new LinkedBlockingQueue<>();
+        private final List<NetcdfFile> all = new ArrayList<>();
+
+        SourceHandles(String location) {
+            this.location = location;
+        }
+
+        NetcdfFile acquire() throws IOException {
+            NetcdfFile ncfile = idle.poll();
+            if (ncfile == null) {
+                ncfile = Aggregation.openLocation(location);
+                synchronized (all) {
+                    all.add(ncfile);
+                }
+                LOG.debug("Opened read handle #{} on {}", all.size(), location);
+            }
+            return ncfile;
+        }
+
+        void release(NetcdfFile ncfile) {
+            idle.offer(ncfile);
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (all) {
+                for (NetcdfFile ncfile : all) {
+                    ncfile.close();
+                }
+                all.clear();
+            }
+        }
+    }
+
     private String generateFileNamePrefix(VariableAssignment vas) {
         StringBuilder sb = new StringBuilder();
         vas.infVariables.forEach(v -> {
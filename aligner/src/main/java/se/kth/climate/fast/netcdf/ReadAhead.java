@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import ucar.ma2.Array;
+
+/**
+ * Reads the next chunk of a block on a background thread while the caller
+ * writes the current one.
+ * <p>
+ * The expected order of reads is given up front. When the caller asks for
+ * exactly the read that was prefetched it gets that result and the following
+ * read is started. Any other request waits for the prefetch to finish and is
+ * then read directly, so the source is never read from two threads at once and
+ * a wrong order only costs the overlap.
+ * <p>
+ * Only one read is ahead at any time, so a caller that reuses buffers has to
+ * alternate between two of them.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ * @param <K> identifies a read
+ */
+class ReadAhead<K> implements AutoCloseable {
+
+    interface Reader<K> {
+
+        public Array read(K key) throws IOException;
+    }
+
+    private final List<K> order;
+    private final Reader<K> reader;
+    private final ExecutorService executor;
+    private int next = 0; // index in order of the prefetched read
+    private Future<Array> pending = null;
+
+    ReadAhead(List<K> order, Reader<K> reader) {
+        this.order = order;
+        this.reader = reader;
+        this.executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("read-ahead-%d").build());
+        prefetch();
+    }
+
+    public Array read(K key) throws IOException {
+        if (pending != null && order.get(next).equals(key)) {
+            Array data = await(pending);
+            next++;
+            prefetch();
+            return data;
+        }
+        if (pending != null) {
+            NetCDFWriter.LOG.debug("Read {} was not the expected {}, reading directly.", key, order.get(next));
+            try {
+                await(pending);
+            } catch (IOException ex) {
+                // it was never asked for
+            }
+            pending = null;
+        }
+        Array data = reader.read(key);
+        int skip = order.subList(Math.min(next, order.size()), order.size()).indexOf(key);
+        if (skip >= 0) { // back in the expected order
+            next += skip + 1;
+            prefetch();
+        }
+        return data;
+    }
+
+    private void prefetch() {
+        if (next < order.size()) {
+            final K key = order.get(next);
+            pending = executor.submit(() -> reader.read(key));
+        } else {
+            pending = null;
+        }
+    }
+
+    private static Array await(Future<Array> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            f.cancel(true);
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Drops the prefetched read, if any, and waits until it has stopped
+     * touching the source, since the caller closes that next.
+     */
+    @Override
+    public void close() {
+        if (pending != null) {
+            // not interrupting, which could leave the source in a bad state for other users
+            pending.cancel(false);
+            pending = null;
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                NetCDFWriter.LOG.warn("Still waiting for a read-ahead to finish.");
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
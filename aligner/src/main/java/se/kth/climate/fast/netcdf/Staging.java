@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.typesafe.config.Config;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where {@link NetCDFWriter} stages blocks before a sink moves or uploads
+ * them.
+ * <p>
+ * {@code nchdfs.staging} is either {@code "tmp"} (the system temp folder),
+ * {@code "target"} (a hidden folder inside a local target, so that moving a
+ * block is a rename on the same file system), or any other folder, e.g. a
+ * tmpfs like {@code /dev/shm}. {@code nchdfs.stagingBytes} caps the bytes
+ * staged at once, which matters for RAM backed folders. A block counts
+ * against the cap from the moment its space is reserved until the sink has
+ * moved or deleted it. With
+ * {@code nchdfs.directIO} blocks are written with {@code O_DIRECT} where the
+ * JDK supports it, so they don't push other data out of the page cache.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class Staging implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(Staging.class);
+
+    public static final String TARGET_FOLDER = ".staging";
+    static final long RECLAIM_INTERVAL_MS = 100;
+
+    private final File base;
+    private final boolean ownsBase;
+    private final long maxBytes;
+    private final boolean directIO;
+    private final Set<Reservation> reserved = new HashSet<>();
+    private final List<File> dirs = new ArrayList<>();
+    private long reservedBytes = 0;
+
+    private Staging(File base, boolean ownsBase, long maxBytes, boolean directIO) {
+        this.base = base;
+        this.ownsBase = ownsBase;
+        this.maxBytes = maxBytes;
+        this.directIO = directIO;
+    }
+
+    /**
+     * Unbounded staging in the system temp folder.
+     */
+    public static Staging tmp() {
+        return new Staging(null, false, 0, false);
+    }
+
+    /**
+     * @param conf
+     * @param target local folder the blocks end up in, or {@code null} if
+     * they are uploaded
+     * @return
+     * @throws IOException
+     */
+    public static Staging fromConfig(Config conf, File target) throws IOException {
+        String where = conf.getString("nchdfs.staging");
+        long maxBytes = conf.getBytes("nchdfs.stagingBytes");
+        boolean directIO = conf.getBoolean("nchdfs.directIO");
+        if (directIO && !DirectFileOutputStream.isSupported()) {
+            LOG.warn("This JDK doesn't support direct I/O, staging through the page cache instead.");
+            directIO = false;
+        }
+        File base;
+        boolean ownsBase = false;
+        switch (where) {
+            case "tmp":
+                base = null;
+                break;
+            case "target":
+                if (target == null) {
+                    LOG.warn("Staging in the target is only possible for local imports, using the temp folder instead.");
+                    base = null;
+                } else {
+                    base = new File(target, TARGET_FOLDER);
+                    ownsBase = !base.exists();
+                }
+                break;
+            default:
+                base = new File(where);
+        }
+        if (base != null && !base.isDirectory() && !base.mkdirs()) {
+            throw new IOException("Could not create staging folder " + base.getAbsolutePath());
+        }
+        LOG.info("Staging blocks in {} (cap={}bytes, directIO={})",
+                new Object[]{base == null ? "the temp folder" : base.getAbsolutePath(), maxBytes, directIO});
+        return new Staging(base, ownsBase, maxBytes, directIO);
+    }
+
+    /**
+     * @return a new, empty folder, so names from different writers can't
+     * collide
+     * @throws IOException
+     */
+    public synchronized File newDir() throws IOException {
+        File dir = base == null
+                ? java.nio.file.Files.createTempDirectory("nchdfs").toFile()
+                : java.nio.file.Files.createTempDirectory(base.toPath(), "nchdfs").toFile();
+        dir.deleteOnExit();
+        dirs.add(dir);
+        return dir;
+    }
+
+    public boolean isDirectIO() {
+        return directIO;
+    }
+
+    /**
+     * Wait until {@code bytes} more can be staged.
+     * <p>
+     * Reservations are returned once the block they are bound to is gone,
+     * i.e. the sink has moved or deleted it. A single block is always admitted
+     * when nothing else is staged, even if it is bigger than the cap.
+     *
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    public Reservation reserve(long bytes) throws IOException {
+        return reserve(bytes, -1);
+    }
+
+    /**
+     * Like {@link #reserve(long)}, but gives up after {@code timeoutMs}.
+     *
+     * @param bytes
+     * @param timeoutMs negative to wait for as long as it takes
+     * @return the reservation, or {@code null} if there was no space in time
+     * @throws IOException
+     */
+    public synchronized Reservation reserve(long bytes, long timeoutMs) throws IOException {
+        Reservation r = new Reservation(bytes);
+        if (maxBytes <= 0) {
+            return r; // not tracked
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (reservedBytes > 0 && reservedBytes + bytes > maxBytes) {
+                if (reclaim()) {
+                    continue;
+                }
+                long waitMs = RECLAIM_INTERVAL_MS;
+                if (timeoutMs >= 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        return null;
+                    }
+                    waitMs = Math.min(waitMs, left);
+                }
+                wait(waitMs);
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for " + bytes + "bytes of staging space");
+        }
+        reserved.add(r);
+        reservedBytes += bytes;
+        return r;
+    }
+
+    private boolean reclaim() {
+        boolean freed = false;
+        Iterator<Reservation> it = reserved.iterator();
+        while (it.hasNext()) {
+            Reservation r = it.next();
+            if (r.file != null && !r.file.exists()) {
+                reservedBytes -= r.bytes;
+                it.remove();
+                freed = true;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @param f
+     * @return a stream to write a staged block to
+     * @throws IOException
+     */
+    public OutputStream create(File f) throws IOException {
+        if (directIO) {
+            try {
+                return new DirectFileOutputStream(f.toPath());
+            } catch (IOException ex) {
+                LOG.warn("Could not open {} for direct I/O, writing through the page cache instead: {}",
+                        f.getAbsolutePath(), ex.getMessage());
+            }
+        }
+        return new BufferedOutputStream(new FileOutputStream(f), NetCDF3StreamWriter.BUFFER_SIZE);
+    }
+
+    /**
+     * Staging space taken for a block.
+     * <p>
+     * It is taken before the block is written, and bound to the block's file
+     * once that exists.
+     */
+    public final class Reservation {
+
+        private File file = null;
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Ties this to {@code f}, and corrects the reserved size to
+         * {@code size} without waiting.
+         *
+         * @param f
+         * @param size
+         */
+        public void bind(File f, long size) {
+            synchronized (Staging.this) {
+                file = f;
+                if (reserved.contains(this)) {
+                    reservedBytes += size - bytes;
+                    Staging.this.notifyAll();
+                }
+                bytes = size;
+            }
+        }
+
+        /**
+         * Return the space right away, e.g. if writing the block failed.
+         */
+        public void release() {
+            synchronized (Staging.this) {
+                if (reserved.remove(this)) {
+                    reservedBytes -= bytes;
+                    Staging.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the folders created by this, if the sinks have emptied them.
+     */
+    @Override
+    public synchronized void close() {
+        for (File dir : dirs) {
+            dir.delete(); // only succeeds if empty
+        }
+        dirs.clear();
+        if (ownsBase) {
+            base.delete();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.aligner;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.typesafe.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.MetaInfo;
+
+/**
+ * Remembers the variable assignment {@link BlockAligner} chose for a schema,
+ * so that files with the same {@link MetaInfo#schemaFingerprint()} can skip
+ * the partition enumeration and go straight to fitting.
+ * <p>
+ * Entries are kept in memory and as one JSON file per key in
+ * {@code nchdfs.alignmentCache}. An empty setting disables the cache.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class AlignmentCache {
+
+    static final Logger LOG = LoggerFactory.getLogger(AlignmentCache.class);
+
+    private static final AlignmentCache NONE = new AlignmentCache(null);
+
+    private final File dir;
+    private final Map<String, List<VariableAssignment>> entries = new ConcurrentHashMap<>();
+    private final Gson gson = new Gson();
+
+    private AlignmentCache(File dir) {
+        this.dir = dir;
+    }
+
+    public static AlignmentCache none() {
+        return NONE;
+    }
+
+    public static AlignmentCache fromConfig(Config conf) {
+        String path = conf.getString("nchdfs.alignmentCache");
+        if (path.isEmpty()) {
+            return NONE;
+        }
+        File dir = new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warn("Could not create alignment cache folder {}, caching is disabled.", dir.getAbsolutePath());
+            return NONE;
+        }
+        return new AlignmentCache(dir);
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Everything apart from the schema that influences the chosen assignment
+     * goes into the key as well.
+     *
+     * @param mInfo
+     * @param blockSize
+     * @param measure
+     * @param splitDim
+     * @param estimator
+     * @return
+     */
+    public static String key(MetaInfo mInfo, long blockSize, AssignmentQualityMeasure measure, Optional<String> splitDim,
+            CompressionEstimator estimator) {
+        String s = mInfo.schemaFingerprint() + '/' + blockSize + '/' + measure.title() + '/' + splitDim.or("")
+                + '/' + estimator.descriptor();
+        return Hashing.sha256().hashString(s, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * @param key
+     * @param mInfo the cached assignment must only name variables of this
+     * @return the assignment stored for {@code key}, if any
+     */
+    public Optional<List<VariableAssignment>> get(String key, MetaInfo mInfo) {
+        if (dir == null) {
+            return Optional.absent();
+        }
+        List<VariableAssignment> vas = entries.get(key);
+        if (vas == null) {
+            vas = load(key);
+            if (vas == null) {
+                return Optional.absent();
+            }
+            entries.putIfAbsent(key, vas);
+        }
+        for (VariableAssignment va : vas) {
+            if (!va.allVariables().stream().allMatch(v -> mInfo.getVariable(v) != null)) {
+                LOG.warn("Cached assignment {} doesn't match {}, ignoring it.", key, mInfo.ncfile.getLocation());
+                return Optional.absent();
+            }
+        }
+        return Optional.of(vas);
+    }
+
+    public void put(String key, List<VariableAssignment> vas) {
+        if (dir == null) {
+            return;
+        }
+        if (entries.putIfAbsent(key, vas) != null) {
+            return; // another file with the same schema got here first
+        }
+        List<Entry> es = new ArrayList<>(vas.size());
+        vas.forEach(va -> es.add(new Entry(va)));
+        File f = file(key);
+        try {
+            File tmp = File.createTempFile(key, ".tmp", dir);
+            Files.write(gson.toJson(es), tmp, Charsets.UTF_8);
+            java.nio.file.Files.move(tmp.toPath(), f.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Cached alignment {} in {}", key, f.getAbsolutePath());
+        } catch (IOException ex) {
+            LOG.warn("Could not write alignment cache entry {}", f.getAbsolutePath(), ex);
+        }
+    }
+
+    private List<VariableAssignment> load(String key) {
+        File f = file(key);
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            Entry[] es = gson.fromJson(Files.toString(f, Charsets.UTF_8), Entry[].class);
+            if (es == null || es.length == 0) {
+                return null;
+            }
+            List<VariableAssignment> vas = new ArrayList<>(es.length);
+            for (Entry e : es) {
+                vas.add(e.toAssignment());
+            }
+            LOG.debug("Loaded cached alignment {} from {}", key, f.getAbsolutePath());
+            return vas;
+        } catch (IOException | JsonParseException | NullPointerException ex) {
+            LOG.warn("Ignoring unreadable alignment cache entry {}", f.getAbsolutePath(), ex);
+            return null;
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key + ".json");
+    }
+
+    private static class Entry {
+
+        List<String> inf;
+        List<String> dimension;
+        List<String> bounds;
+        List<String> other;
+        List<String> constants;
+
+        Entry() {
+            // for Gson
+        }
+
+        Entry(VariableAssignment va) {
+            this.inf = new ArrayList<>(va.infVariables);
+            this.dimension = new ArrayList<>(va.dimensionVariables);
+            this.bounds = new ArrayList<>(va.boundsVariables);
+            this.other = new ArrayList<>(va.otherVariables);
+            this.constants = new ArrayList<>(va.constants);
+        }
+
+        VariableAssignment toAssignment() {
+            return VariableAssignment.assign(new HashSet<>(inf), new HashSet<>(dimension),
+                    new HashSet<>(bounds), new HashSet<>(other), new HashSet<>(constants));
+        }
+    }
+}
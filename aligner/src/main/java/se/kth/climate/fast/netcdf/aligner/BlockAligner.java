@@ -41,7 +41,10 @@ import org.jgrapht.graph.DefaultEdge;
 import org.jgrapht.graph.DirectedPseudograph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.DataDescriptor;
+import se.kth.climate.fast.netcdf.FlightEvents;
 import se.kth.climate.fast.netcdf.MetaInfo;
+import se.kth.climate.fast.netcdf.NetCDFUtils;
 import ucar.nc2.Dimension;
 import ucar.nc2.Variable;
 
@@ -58,12 +61,20 @@ public class BlockAligner {
     public final AssignmentQualityMeasure measure;
     private final Config config;
     private final Optional<String> splitDim;
+    private final AlignmentCache cache;
+    private final CompressionEstimator estimator;
 
     public BlockAligner(long blockSize, MetaInfo mInfo, AssignmentQualityMeasure measure, Config conf) {
+        this(blockSize, mInfo, measure, conf, AlignmentCache.none());
+    }
+
+    public BlockAligner(long blockSize, MetaInfo mInfo, AssignmentQualityMeasure measure, Config conf, AlignmentCache cache) {
         this.blockSize = blockSize;
         this.metaInfo = mInfo;
         this.measure = measure;
         this.config = conf;
+        this.cache = cache;
+        this.estimator = CompressionEstimator.fromConfig(conf, mInfo);
         if (config.hasPath("nchdfs.splitdim")) {
             String dim = config.getString("nchdfs.splitdim");
             if (metaInfo.ncfile.findDimension(dim) != null) {
@@ -77,8 +88,39 @@ public class BlockAligner {
         }
     }
 
+    /**
+     * @return how the blocks of this alignment were sized, which is also how
+     * they have to be written
+     */
+    public CompressionEstimator estimator() {
+        return estimator;
+    }
+
     public VariableAlignment align() {
+        String cacheKey = null;
+        if (cache.isEnabled()) {
+            cacheKey = AlignmentCache.key(metaInfo, blockSize, measure, splitDim, estimator);
+            Optional<List<VariableAssignment>> cached = cache.get(cacheKey, metaInfo);
+            if (cached.isPresent()) {
+                try {
+                    VariableAlignment va = fit(cached.get());
+                    LOG.debug("Using cached assignment {} for {}", cacheKey, metaInfo.ncfile.getLocation());
+                    return va;
+                } catch (FittingException ex) {
+                    LOG.info("Cached assignment {} doesn't fit {}, enumerating instead.", cacheKey, metaInfo.ncfile.getLocation());
+                }
+            }
+        }
+        FlightEvents.Span enumSpan = FlightEvents.align("enumerate");
         List<List<VariableAssignment>> assignments = enumeratePossibleAssignments();
+        if (enumSpan.isRecording()) {
+            enumSpan.block(metaInfo.ncfile.getLocation())
+                    .bytes(NetCDFUtils.estimateDataSize(metaInfo.ncfile))
+                    .variables(metaInfo.ncfile.getVariables().stream()
+                            .map(Variable::getFullNameEscaped).collect(Collectors.toList()))
+                    .count(assignments.size())
+                    .commit();
+        }
         List<VariableAlignment> fits = assignments.stream()
                 .map(this::fit).collect(Collectors.toList());
         LOG.debug("Got fits:\n{}", fits);
@@ -90,12 +132,32 @@ public class BlockAligner {
             return (int) Math.signum(diff);
         });
         LOG.debug("Ratings:\n{}", measured);
-        return measured.get(0).getValue0(); // return the alignment with the best rating
+        VariableAlignment best = measured.get(0).getValue0(); // return the alignment with the best rating
+        if (cacheKey != null) {
+            cache.put(cacheKey, best.assignments);
+        }
+        return best;
     }
 
     private VariableAlignment fit(List<VariableAssignment> vas) {
-        BlockFitter bf = new BlockFitter(vas, metaInfo, blockSize, splitDim);
-        return bf.fit();
+        FlightEvents.Span span = FlightEvents.align("fit");
+        BlockFitter bf = new BlockFitter(vas, metaInfo, blockSize, splitDim, estimator);
+        VariableAlignment va = bf.fit();
+        if (!span.isRecording()) {
+            return va;
+        }
+        long blocks = 0;
+        long bytes = 0;
+        Set<String> vars = new TreeSet<>();
+        for (VariableFit vf : va.fits) {
+            blocks += vf.numberOfFiles;
+            for (DataDescriptor dd : vf.dataDescriptors) {
+                bytes += estimator.estimate(dd);
+                vars.addAll(dd.vars);
+            }
+        }
+        span.block(metaInfo.ncfile.getLocation()).bytes(bytes).variables(vars).count(blocks).commit();
+        return va;
     }
 
     private List<List<VariableAssignment>> enumeratePossibleAssignments() {
@@ -54,19 +54,30 @@ public class BlockFitter {
     private final MetaInfo mInfo;
     private final long blockSize;
     private final Optional<String> splitDim;
+    private final CompressionEstimator estimator;
 
     public BlockFitter(List<VariableAssignment> vas, MetaInfo mi, long blockSize, Optional<String> splitDim) {
+        this(vas, mi, blockSize, splitDim, CompressionEstimator.none());
+    }
+
+    /**
+     * @param estimator sizes blocks as they will be written, so compressed
+     * blocks get correspondingly larger ranges
+     */
+    public BlockFitter(List<VariableAssignment> vas, MetaInfo mi, long blockSize, Optional<String> splitDim,
+            CompressionEstimator estimator) {
         this.vas = vas;
         this.mInfo = mi;
         this.blockSize = blockSize;
         this.splitDim = splitDim;
+        this.estimator = estimator;
     }
 
     public VariableAlignment fit() {
         LOG.debug("Starting to fit: " + vas);
         List<Pair<VariableAssignment, DataDescriptor>> fullDD = vas.stream().map(this::va2ddFull).collect(Collectors.toList());
         List<Triplet<VariableAssignment, DataDescriptor, Long>> fullSizes = fullDD.stream()
-                .map(pdd -> Triplet.with(pdd.getValue0(), pdd.getValue1(), pdd.getValue1().estimateSize()))
+                .map(pdd -> Triplet.with(pdd.getValue0(), pdd.getValue1(), estimator.estimate(pdd.getValue1())))
                 .collect(Collectors.toList());
         LOG.debug("Full Descriptors:\n" + fullSizes);
         List<Pair<VariableAssignment, VariableFit>> fits;
@@ -109,8 +120,9 @@ public class BlockFitter {
                 throw new FittingException("No non-constant dimensions to split over!", va, initialDD);
             }
         }
-        long perBlockSize = (long) Math.floor(blockRatio * ((double) dr1.getSize()));
-        LOG.debug("Splitting over {} with {} slices per block", dr1, perBlockSize);
+        long chunk = mInfo.chunkLength(dr1.name);
+        long perBlockSize = alignDown((long) Math.floor(blockRatio * ((double) dr1.getSize())), chunk);
+        LOG.debug("Splitting over {} with {} slices per block (source chunks are {} slices)", new Object[]{dr1, perBlockSize, chunk});
         while (perBlockSize > 0) { // this should fit with at least a single slice per file
             // generate sub ranges
             List<DimensionRange> subRanges = new LinkedList<>();
@@ -130,11 +142,11 @@ public class BlockFitter {
                 return new DataDescriptor(initialDD.metaInfo, initialDD.vars, drsB.build(), Optional.of(splitdr.name));
             }).collect(Collectors.toList());
             LOG.debug("Generated new data descritors:\n{}", newDDs);
-            long firstSize = newDDs.get(0).estimateSize();
+            long firstSize = estimator.estimate(newDDs.get(0));
             if (firstSize < blockLimit()) {
                 return Pair.with(va, VariableFit.fromDataDescriptors(ImmutableList.copyOf(newDDs)));
             } else {
-                perBlockSize--;
+                perBlockSize = perBlockSize > chunk ? alignDown(perBlockSize - 1, chunk) : perBlockSize - 1;
 //                // TODO write a more flexible fitter, that tries decrements of ranges until it fits (if possible)
 //                throw new FittingException("It should have fit, but it decided not to. Estimated size was "
 //                        + firstSize + "bytes of limit " + blockLimit() + "bytes."
@@ -171,6 +183,18 @@ public class BlockFitter {
         return Pair.with(va, new DataDescriptor(mInfo, vars, dims, Optional.absent()));
     }
 
+    /**
+     * Round down to whole source chunks, so that neighbouring blocks don't
+     * both have to decompress the chunk on their boundary. Blocks smaller than
+     * a chunk are left as they are.
+     */
+    private static long alignDown(long slices, long chunk) {
+        if (chunk <= 1 || slices < chunk) {
+            return slices;
+        }
+        return slices - (slices % chunk);
+    }
+
     private long blockLimit() {
         return blockSize - ESTIMATION_MARGIN;
     }
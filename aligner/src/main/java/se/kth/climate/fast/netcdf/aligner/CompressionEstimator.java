@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.aligner;
+
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.DataDescriptor;
+import se.kth.climate.fast.netcdf.MetaInfo;
+import se.kth.climate.fast.netcdf.NetCDFConstants;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+
+/**
+ * Estimates the size of gzip compressed blocks.
+ * <p>
+ * The compression ratio of every variable is measured once by deflating a
+ * sample of up to {@link #SAMPLE_BYTES} from the middle of the variable, and
+ * applied to the uncompressed size of each block. The result is increased by
+ * {@code nchdfs.compressionMargin}, since the sample may compress better than
+ * the rest of the data.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class CompressionEstimator {
+
+    static final Logger LOG = LoggerFactory.getLogger(CompressionEstimator.class);
+
+    public static final int SAMPLE_BYTES = 1024 * 1024;
+    /**
+     * Constant samples deflate to almost nothing, which would say little about
+     * the rest of the variable.
+     */
+    public static final double MIN_RATIO = 0.01;
+
+    private static final CompressionEstimator NONE = new CompressionEstimator(null, 0, 0.0);
+
+    private final MetaInfo mInfo;
+    private final int level;
+    private final double margin;
+    private final Map<String, Double> ratios = new ConcurrentHashMap<>();
+
+    private CompressionEstimator(MetaInfo mInfo, int level, double margin) {
+        this.mInfo = mInfo;
+        this.level = level;
+        this.margin = margin;
+    }
+
+    /**
+     * Blocks are written uncompressed and estimated with
+     * {@link DataDescriptor#estimateSize()}.
+     */
+    public static CompressionEstimator none() {
+        return NONE;
+    }
+
+    public static CompressionEstimator fromConfig(Config conf, MetaInfo mInfo) {
+        String codec = conf.getString("nchdfs.compression");
+        switch (codec) {
+            case "none":
+                return NONE;
+            case "gzip":
+                int level = conf.getInt("nchdfs.compressionLevel");
+                if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+                    throw new IllegalArgumentException("Invalid compression level: " + level);
+                }
+                double margin = conf.getDouble("nchdfs.compressionMargin");
+                if (margin < 0.0) {
+                    throw new IllegalArgumentException("Invalid compression margin: " + margin);
+                }
+                return new CompressionEstimator(mInfo, level, margin);
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + codec);
+        }
+    }
+
+    public boolean isEnabled() {
+        return mInfo != null;
+    }
+
+    public int level() {
+        return level;
+    }
+
+    /**
+     * @return the settings that influence the estimates, e.g.
+     * {@code gzip:6:0.1}, or {@code none}
+     */
+    public String descriptor() {
+        if (!isEnabled()) {
+            return "none";
+        }
+        return "gzip:" + level + ':' + margin;
+    }
+
+    /**
+     * @return the size of the block described by {@code dd} as it will be
+     * written, compressed if enabled
+     */
+    public long estimate(DataDescriptor dd) {
+        if (!isEnabled()) {
+            return dd.estimateSize();
+        }
+        double size = dd.estimateHeaderSize();
+        for (String vName : dd.vars) {
+            Variable v = mInfo.getVariable(vName);
+            long raw = dd.variableSize(vName) * ((long) Math.max(mInfo.getVarElementSize(v), NetCDFConstants.PADDING_SIZE));
+            size += NetCDFConstants.ALIGN_SIZE + raw * ratio(v);
+        }
+        return (long) Math.ceil(size * (1.0 + margin));
+    }
+
+    /**
+     * @return compressed over uncompressed size of a sample of {@code v}
+     */
+    public double ratio(Variable v) {
+        return ratios.computeIfAbsent(v.getFullNameEscaped(), (name) -> sampleRatio(v));
+    }
+
+    private double sampleRatio(Variable v) {
+        int[] shape = v.getShape();
+        int[] origin = new int[shape.length];
+        long elements = 1;
+        for (int len : shape) {
+            elements *= len;
+        }
+        long maxElements = Math.max(1, SAMPLE_BYTES / Math.max(1, v.getElementSize()));
+        // shrink the outermost dimensions around their middle until the sample is small enough
+        for (int i = 0; i < shape.length && elements > maxElements; i++) {
+            long inner = elements / Math.max(1, shape[i]);
+            int len = (int) Math.max(1, Math.min(shape[i], maxElements / Math.max(1, inner)));
+            origin[i] = (shape[i] - len) / 2;
+            elements = inner * len;
+            shape[i] = len;
+        }
+        if (elements == 0) {
+            return 1.0;
+        }
+        try {
+            Array sample = v.read(origin, shape);
+            ByteBuffer buf = sample.getDataAsByteBuffer();
+            byte[] raw = new byte[buf.remaining()];
+            buf.get(raw);
+            double ratio = Math.max(MIN_RATIO, (double) deflatedSize(raw) / (double) raw.length);
+            LOG.debug("Compression ratio of {} is {} (sampled {} bytes).", new Object[]{v.getFullNameEscaped(), ratio, raw.length});
+            return ratio;
+        } catch (IOException | InvalidRangeException ex) {
+            LOG.warn("Could not sample {}, assuming it doesn't compress.", v.getFullNameEscaped(), ex);
+            return 1.0;
+        }
+    }
+
+    private long deflatedSize(byte[] raw) {
+        Deflater def = new Deflater(level, true);
+        try {
+            def.setInput(raw);
+            def.finish();
+            byte[] out = new byte[64 * 1024];
+            long size = 0;
+            while (!def.finished()) {
+                size += def.deflate(out);
+            }
+            return size;
+        } finally {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.aligner;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.DataDescriptor;
+import se.kth.climate.fast.netcdf.DimensionRange;
+
+/**
+ * Packs the undersized last blocks of the variable groups of an alignment
+ * into shared blocks, first fit decreasing.
+ * <p>
+ * Two blocks can share a file if they agree on the range of every dimension
+ * they have in common and aren't split over different dimensions, e.g. the
+ * tail of a variable split over time and the constants over lat/lon. Each
+ * packed block is still a single NetCDF file of at most the block size.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class TailPacker {
+
+    static final Logger LOG = LoggerFactory.getLogger(TailPacker.class);
+
+    private final long blockSize;
+    private final CompressionEstimator estimator;
+
+    public TailPacker(long blockSize, CompressionEstimator estimator) {
+        this.blockSize = blockSize;
+        this.estimator = estimator;
+    }
+
+    public VariableAlignment pack(VariableAlignment va) {
+        List<Tail> tails = new ArrayList<>();
+        for (Pair<VariableAssignment, VariableFit> pvv : va) {
+            ImmutableList<DataDescriptor> dds = pvv.getValue1().dataDescriptors;
+            DataDescriptor last = dds.get(dds.size() - 1);
+            tails.add(new Tail(pvv.getValue0(), last, estimator.estimate(last)));
+        }
+        tails.sort((t1, t2) -> Long.compare(t2.size, t1.size));
+        List<Bin> bins = new ArrayList<>();
+        for (Tail t : tails) {
+            boolean packed = false;
+            for (Bin b : bins) {
+                if (b.tryAdd(t)) {
+                    packed = true;
+                    break;
+                }
+            }
+            if (!packed) {
+                bins.add(new Bin(t));
+            }
+        }
+        if (bins.size() == tails.size()) {
+            LOG.debug("None of the {} tail blocks could be packed.", tails.size());
+            return va;
+        }
+        Map<DataDescriptor, Bin> packedTails = new IdentityHashMap<>();
+        for (Bin b : bins) {
+            if (b.tails.size() > 1) {
+                for (Tail t : b.tails) {
+                    packedTails.put(t.dd, b);
+                }
+            }
+        }
+        List<Pair<VariableAssignment, VariableFit>> fits = new ArrayList<>();
+        for (Pair<VariableAssignment, VariableFit> pvv : va) {
+            ImmutableList<DataDescriptor> dds = pvv.getValue1().dataDescriptors;
+            if (!packedTails.containsKey(dds.get(dds.size() - 1))) {
+                fits.add(pvv);
+            } else if (dds.size() > 1) {
+                fits.add(Pair.with(pvv.getValue0(), VariableFit.fromDataDescriptors(dds.subList(0, dds.size() - 1))));
+            }
+        }
+        for (Bin b : bins) {
+            if (b.tails.size() > 1) {
+                fits.add(Pair.with(b.assignment(), VariableFit.fromDataDescriptors(ImmutableList.of(b.dd))));
+            }
+        }
+        LOG.info("Packed {} tail blocks into {}.", tails.size(), bins.size());
+        return VariableAlignment.of(fits);
+    }
+
+    private long blockLimit() {
+        return blockSize - BlockFitter.ESTIMATION_MARGIN;
+    }
+
+    /**
+     * @return {@code a} and {@code b} in one descriptor, or absent if they
+     * can't share a file
+     */
+    static Optional<DataDescriptor> merge(DataDescriptor a, DataDescriptor b) {
+        if (a.metaInfo != b.metaInfo) {
+            return Optional.absent();
+        }
+        if (a.splitDim.isPresent() && b.splitDim.isPresent() && !a.splitDim.get().equals(b.splitDim.get())) {
+            return Optional.absent();
+        }
+        Map<String, DimensionRange> dims = new HashMap<>(a.dims);
+        for (DimensionRange dr : b.dims.values()) {
+            DimensionRange other = dims.get(dr.name);
+            if (other == null) {
+                dims.put(dr.name, dr);
+            } else if (other.start != dr.start || other.end != dr.end) {
+                return Optional.absent();
+            }
+        }
+        Set<String> vars = new HashSet<>(a.vars);
+        vars.addAll(b.vars);
+        return Optional.of(new DataDescriptor(a.metaInfo, vars, dims, a.splitDim.or(b.splitDim)));
+    }
+
+    private static class Tail {
+
+        final VariableAssignment va;
+        final DataDescriptor dd;
+        final long size;
+
+        Tail(VariableAssignment va, DataDescriptor dd, long size) {
+            this.va = va;
+            this.dd = dd;
+            this.size = size;
+        }
+    }
+
+    private class Bin {
+
+        final List<Tail> tails = new ArrayList<>();
+        DataDescriptor dd;
+
+        Bin(Tail t) {
+            tails.add(t);
+            dd = t.dd;
+        }
+
+        boolean tryAdd(Tail t) {
+            Optional<DataDescriptor> merged = merge(dd, t.dd);
+            if (merged.isPresent() && estimator.estimate(merged.get()) < blockLimit()) {
+                tails.add(t);
+                dd = merged.get();
+                return true;
+            }
+            return false;
+        }
+
+        VariableAssignment assignment() {
+            Set<String> inf = new HashSet<>();
+            Set<String> dims = new HashSet<>();
+            Set<String> bounds = new HashSet<>();
+            Set<String> other = new HashSet<>();
+            Set<String> constants = new HashSet<>();
+            for (Tail t : tails) {
+                inf.addAll(t.va.infVariables);
+                dims.addAll(t.va.dimensionVariables);
+                bounds.addAll(t.va.boundsVariables);
+                other.addAll(t.va.otherVariables);
+                constants.addAll(t.va.constants);
+            }
+            return VariableAssignment.assign(inf, dims, bounds, other, constants);
+        }
+    }
+}
@@ -44,6 +44,16 @@ public class VariableAssignment {
         this.constants = constants;
     }
 
+    public ImmutableSet<String> allVariables() {
+        return ImmutableSet.<String>builder()
+                .addAll(infVariables)
+                .addAll(dimensionVariables)
+                .addAll(boundsVariables)
+                .addAll(otherVariables)
+                .addAll(constants)
+                .build();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
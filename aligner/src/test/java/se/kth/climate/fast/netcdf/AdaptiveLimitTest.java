@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+@RunWith(JUnit4.class)
+public class AdaptiveLimitTest {
+
+    static final long WINDOW = 1000;
+
+    private long now;
+    private AdaptiveLimit al;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        al = new AdaptiveLimit("test", 8, WINDOW, 0.1, () -> now);
+    }
+
+    /**
+     * Runs {@code workers} units of work that move {@code bytes} in total over
+     * one window.
+     */
+    private void window(int workers, long bytes, boolean success) throws IOException {
+        for (int i = 0; i < workers; i++) {
+            al.acquire();
+        }
+        for (int i = 0; i < workers - 1; i++) {
+            al.release(bytes / workers, true);
+        }
+        now += WINDOW;
+        al.release(bytes - (workers - 1) * (bytes / workers), success);
+    }
+
+    @Test
+    public void testIncrease() throws IOException {
+        Assert.assertEquals(4, al.limit());
+        window(4, 4000, true);
+        Assert.assertEquals(5, al.limit());
+        window(5, 5000, true); // better with one more
+        Assert.assertEquals(6, al.limit());
+        window(6, 6000, true);
+        window(7, 7000, true);
+        window(8, 8000, true);
+        Assert.assertEquals(8, al.limit());
+        window(8, 8000, true); // stays at the number of threads
+        Assert.assertEquals(8, al.limit());
+    }
+
+    @Test
+    public void testHalving() throws IOException {
+        window(4, 4000, true);
+        Assert.assertEquals(5, al.limit());
+        window(5, 3000, true); // more than 10% worse
+        Assert.assertEquals(2, al.limit());
+        window(2, 2000, true);
+        window(3, 500, true);
+        Assert.assertEquals(1, al.limit());
+        window(1, 0, false);
+        Assert.assertEquals(1, al.limit()); // never below one
+    }
+
+    @Test
+    public void testWithinTolerance() throws IOException {
+        window(4, 4000, true);
+        window(5, 3700, true); // less than 10% worse
+        Assert.assertEquals(6, al.limit());
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        window(4, 4000, true);
+        window(5, 5000, false);
+        Assert.assertEquals(2, al.limit());
+    }
+
+    @Test
+    public void testBaselineReset() throws IOException {
+        window(4, 4000, true);
+        window(5, 2000, true);
+        Assert.assertEquals(2, al.limit());
+        // the window after a decrease is not compared with the one before it
+        window(2, 1000, true);
+        Assert.assertEquals(3, al.limit());
+        // neither is the one after an unsaturated window
+        window(1, 100, true);
+        Assert.assertEquals(3, al.limit());
+        window(3, 50, true);
+        Assert.assertEquals(4, al.limit());
+        window(4, 10, true); // now it is
+        Assert.assertEquals(2, al.limit());
+    }
+
+    @Test
+    public void testFixed() throws IOException {
+        AdaptiveLimit fixed = AdaptiveLimit.fixed("test", 3);
+        Assert.assertFalse(fixed.isEnabled());
+        for (int i = 0; i < 10; i++) {
+            fixed.acquire(); // never blocks
+        }
+        Assert.assertEquals(3, fixed.limit());
+    }
+}
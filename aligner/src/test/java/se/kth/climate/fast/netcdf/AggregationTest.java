@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+@RunWith(JUnit4.class)
+public class AggregationTest {
+
+    @Test
+    public void testOrdering() {
+        Aggregation.Join j = new Aggregation.Join("time");
+        File late = new File("/data/a_late.nc");
+        File early = new File("/data/z_early.nc");
+        File tieB = new File("/data/tie_b.nc");
+        File tieA = new File("/data/tie_a.nc");
+        File noCoordB = new File("/data/b_nocoord.nc");
+        File noCoordA = new File("/data/a_nocoord.nc");
+        j.add(noCoordB, 10, null, null);
+        j.add(late, 10, 200.0, 209.0);
+        j.add(tieB, 10, 100.0, 109.0);
+        j.add(noCoordA, 10, null, null);
+        j.add(early, 10, 0.0, 9.0);
+        j.add(tieA, 10, 100.0, 109.0);
+        j.sort();
+        // by first coordinate, then name; files without one go last
+        Assert.assertEquals(Arrays.asList(early, tieA, tieB, late, noCoordA, noCoordB), j.files());
+        Assert.assertEquals("time", j.dimension().get());
+    }
+
+    @Test
+    public void testRuns() {
+        Aggregation.Join j = new Aggregation.Join("time");
+        File a = new File("/data/a.nc");
+        File b = new File("/data/b.nc");
+        File dup = new File("/data/b_copy.nc");
+        File overlap = new File("/data/c.nc");
+        File gap = new File("/data/d.nc");
+        File e = new File("/data/e.nc");
+        File noCoord = new File("/data/x.nc");
+        j.add(a, 10, 0.0, 9.0);
+        j.add(b, 10, 10.0, 19.0);
+        j.add(dup, 10, 10.0, 19.0);
+        j.add(overlap, 10, 15.0, 24.0);
+        j.add(gap, 10, 40.0, 49.0);
+        j.add(e, 5, 50.0, 54.0);
+        j.add(noCoord, 10, null, null);
+        j.sort();
+        List<Aggregation.Join> runs = j.runs();
+        Assert.assertEquals(5, runs.size());
+        Assert.assertEquals(Arrays.asList(a, b), runs.get(0).files());
+        Assert.assertEquals(Arrays.asList(dup), runs.get(1).files());
+        Assert.assertEquals(Arrays.asList(overlap), runs.get(2).files());
+        Assert.assertEquals(Arrays.asList(gap, e), runs.get(3).files());
+        Assert.assertEquals(Arrays.asList(noCoord), runs.get(4).files());
+        // a single run is the join itself
+        Aggregation.Join contiguous = new Aggregation.Join("time");
+        contiguous.add(b, 10, 10.0, 19.0);
+        contiguous.add(a, 10, 0.0, 9.0);
+        contiguous.sort();
+        Assert.assertEquals(Arrays.asList(contiguous), contiguous.runs());
+    }
+
+    @Test
+    public void testNcMLEscaping() throws Exception {
+        Aggregation.Join j = new Aggregation.Join("t<i>me&\"");
+        File first = new File("/data/a&b \"quoted\" <1>.nc");
+        File second = new File("/data/it's.nc");
+        j.add(first, 12, 0.0, 11.0);
+        j.add(second, 7, 12.0, 18.0);
+        String ncml = j.toNcML();
+        Assert.assertTrue(ncml.contains("/data/a&amp;b &quot;quoted&quot; &lt;1&gt;.nc"));
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(ncml.getBytes(StandardCharsets.UTF_8)));
+        Element agg = (Element) doc.getElementsByTagNameNS(Aggregation.NCML_NAMESPACE, "aggregation").item(0);
+        Assert.assertEquals("t<i>me&\"", agg.getAttribute("dimName"));
+        Assert.assertEquals("joinExisting", agg.getAttribute("type"));
+        NodeList members = agg.getElementsByTagNameNS(Aggregation.NCML_NAMESPACE, "netcdf");
+        Assert.assertEquals(2, members.getLength());
+        Element m0 = (Element) members.item(0);
+        Element m1 = (Element) members.item(1);
+        Assert.assertEquals(first.getAbsolutePath(), m0.getAttribute("location"));
+        Assert.assertEquals("12", m0.getAttribute("ncoords"));
+        Assert.assertEquals(second.getAbsolutePath(), m1.getAttribute("location"));
+        Assert.assertEquals("7", m1.getAttribute("ncoords"));
+    }
+
+    @Test
+    public void testSingleFile() {
+        File f = new File("/data/single.nc");
+        Aggregation.Join j = Aggregation.Join.of(f);
+        Assert.assertFalse(j.dimension().isPresent());
+        Assert.assertEquals(Arrays.asList(f), j.files());
+        Assert.assertEquals(f.getAbsolutePath(), j.toString());
+    }
+}
@@ -23,7 +23,9 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -31,8 +33,12 @@ import java.util.Map;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import se.kth.climate.fast.netcdf.BlockManifest;
+import se.kth.climate.fast.netcdf.BlockTarget;
+import se.kth.climate.fast.netcdf.FillReport;
 import se.kth.climate.fast.netcdf.MetaInfo;
 import se.kth.climate.fast.netcdf.NetCDFWriter;
+import se.kth.climate.fast.netcdf.Staging;
 import se.kth.climate.fast.netcdf.VariableMapping;
 import se.kth.climate.fast.netcdf.WorkQueue;
 import se.kth.climate.fast.netcdf.testing.FileGenerator;
@@ -161,6 +167,58 @@ public class AlignerTest {
         }
     }
     
+    @Test
+    public void testDirect() {
+        try {
+            Config conf = ConfigFactory.load();
+            String inPath = dir.getAbsolutePath() + "/in.nc";
+            File f = new File(inPath);
+            f.createNewFile();
+            f.deleteOnExit();
+            fg.generate(f);
+            System.out.println("***** File generated: " + inPath + " *****");
+            NetcdfFile ncfile = NetcdfFile.open(inPath);
+            MetaInfo mInfo = MetaInfo.fromNetCDF(ncfile);
+            BlockAligner aligner = new BlockAligner(BLOCK_SIZE, mInfo, new MinFilesMeasure(), conf);
+            VariableAlignment va = aligner.align();
+            System.out.println("***** Chosen Alignment:\n" + va + " *****");
+            final File outDir = Files.createTempDir();
+            outDir.deleteOnExit();
+            final List<File> committed = new LinkedList<>();
+            BlockTarget target = new BlockTarget() {
+                @Override
+                public OutputStream create(String name, long size) throws IOException {
+                    File out = new File(outDir, name);
+                    out.deleteOnExit();
+                    return new FileOutputStream(out);
+                }
+
+                @Override
+                public void commit(String name, long size) throws IOException {
+                    File out = new File(outDir, name);
+                    Assert.assertEquals(size, out.length());
+                    committed.add(out);
+                }
+            };
+            // small copy buffer, so variables are streamed in many chunks
+            NetCDFWriter writer = new NetCDFWriter(2, BlockManifest.none(), new FillReport(BLOCK_SIZE), 4 * 1024);
+            writer.setReadAhead(true);
+            System.out.println("***** Alignment complete. Streaming... *****");
+            writer.write(va, target);
+            System.out.println("***** Streaming complete. *****");
+            List<NetcdfFile> ncfiles = new LinkedList<>();
+            for (File out : committed) {
+                ncfiles.add(NetcdfFile.open(out.getAbsolutePath()));
+            }
+            System.out.println("***** Checking... *****");
+            Assert.assertTrue(fg.checkBlocks(ncfiles));
+            System.out.println("***** All checked out! *****");
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            Assert.fail(ex.getMessage());
+        }
+    }
+
     @Test
     public void testMapping() {
         try {
@@ -201,5 +259,65 @@ public class AlignerTest {
             Assert.fail(ex.getMessage());
         }
     }
+
+    /**
+     * With room for only one staged block, two writers must not end up
+     * waiting on each other's staging space.
+     */
+    @Test(timeout = 5 * 60 * 1000)
+    public void testStagingCap() {
+        try {
+            Config conf = ConfigFactory.load()
+                    .withValue("nchdfs.stagingBytes", ConfigValueFactory.fromAnyRef(BLOCK_SIZE, "test argument"));
+            String inPath = dir.getAbsolutePath() + "/in.nc";
+            File f = new File(inPath);
+            f.createNewFile();
+            f.deleteOnExit();
+            fg.generate(f);
+            System.out.println("***** File generated: " + inPath + " *****");
+            NetcdfFile ncfile = NetcdfFile.open(inPath);
+            MetaInfo mInfo = MetaInfo.fromNetCDF(ncfile);
+            BlockAligner aligner = new BlockAligner(BLOCK_SIZE, mInfo, new MinFilesMeasure(), conf);
+            VariableAlignment va = aligner.align();
+            System.out.println("***** Chosen Alignment:\n" + va + " *****");
+            Assert.assertTrue(va.fits.stream().mapToInt(vf -> vf.dataDescriptors.size()).sum() > 1);
+            final File outDir = Files.createTempDir();
+            outDir.deleteOnExit();
+            final List<File> moved = new LinkedList<>();
+            // moving a block out of the staging folder frees its space
+            Thread mover = new Thread(() -> {
+                Optional<File> fO = q.take();
+                while (fO.isPresent()) {
+                    File out = new File(outDir, fO.get().getName());
+                    out.deleteOnExit();
+                    if (fO.get().renameTo(out)) {
+                        moved.add(out);
+                    }
+                    fO = q.take();
+                }
+            });
+            mover.start();
+            try (Staging staging = Staging.fromConfig(conf, null)) {
+                NetCDFWriter writer = new NetCDFWriter(2, BlockManifest.none(), new FillReport(BLOCK_SIZE), 4 * MB);
+                writer.setStaging(staging);
+                System.out.println("***** Alignment complete. Writing... *****");
+                writer.write(va, q);
+            } finally {
+                q.complete();
+            }
+            mover.join();
+            System.out.println("***** Writing complete. *****");
+            List<NetcdfFile> ncfiles = new LinkedList<>();
+            for (File out : moved) {
+                ncfiles.add(NetcdfFile.open(out.getAbsolutePath()));
+            }
+            System.out.println("***** Checking... *****");
+            Assert.assertTrue(fg.checkBlocks(ncfiles));
+            System.out.println("***** All checked out! *****");
+        } catch (IOException | InterruptedException ex) {
+            ex.printStackTrace(System.err);
+            Assert.fail(ex.getMessage());
+        }
+    }
     
 }
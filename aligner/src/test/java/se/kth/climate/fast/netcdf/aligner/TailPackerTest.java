@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.aligner;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.javatuples.Pair;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.kth.climate.fast.netcdf.DataDescriptor;
+import se.kth.climate.fast.netcdf.DimensionRange;
+import se.kth.climate.fast.netcdf.MetaInfo;
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriter;
+
+/**
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public class TailPackerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private static NetcdfFile ncfile;
+    private static MetaInfo mInfo;
+
+    /**
+     * tas(time, lat, lon), pr(time, lat, lon) and area(lat, lon) over 100
+     * times on a 10x10 grid; the data itself is never read.
+     */
+    @BeforeClass
+    public static void setUp() throws IOException {
+        File dir = Files.createTempDir();
+        dir.deleteOnExit();
+        File f = new File(dir, "tails.nc");
+        f.deleteOnExit();
+        try (NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, f.getAbsolutePath())) {
+            Dimension time = writer.addDimension(null, "time", 100);
+            Dimension lat = writer.addDimension(null, "lat", 10);
+            Dimension lon = writer.addDimension(null, "lon", 10);
+            writer.addVariable(null, "tas", DataType.FLOAT, Arrays.asList(time, lat, lon));
+            writer.addVariable(null, "pr", DataType.FLOAT, Arrays.asList(time, lat, lon));
+            writer.addVariable(null, "area", DataType.FLOAT, Arrays.asList(lat, lon));
+            writer.create();
+        }
+        ncfile = NetcdfFile.open(f.getAbsolutePath());
+        mInfo = MetaInfo.fromNetCDF(ncfile);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        ncfile.close();
+    }
+
+    private static DataDescriptor dd(Set<String> vars, String splitDim, DimensionRange... ranges) {
+        Map<String, DimensionRange> dims = new HashMap<>();
+        for (DimensionRange dr : ranges) {
+            dims.put(dr.name, dr);
+        }
+        return new DataDescriptor(mInfo, vars, dims, Optional.fromNullable(splitDim));
+    }
+
+    private static DimensionRange time(long start, long end) {
+        return new DimensionRange("time", start, end, false);
+    }
+
+    private static DimensionRange lat(long start, long end) {
+        return new DimensionRange("lat", start, end, false);
+    }
+
+    private static DimensionRange lon() {
+        return new DimensionRange("lon", 0, 9, false);
+    }
+
+    private static Pair<VariableAssignment, VariableFit> fit(Set<String> inf, Set<String> constants, DataDescriptor... dds) {
+        Set<String> none = Collections.emptySet();
+        return Pair.with(VariableAssignment.assign(inf, none, none, none, constants),
+                VariableFit.fromDataDescriptors(ImmutableList.copyOf(dds)));
+    }
+
+    @Test
+    public void testMergeSharedRanges() {
+        DataDescriptor tasTail = dd(ImmutableSet.of("tas"), "time", time(90, 99), lat(0, 9), lon());
+        DataDescriptor area = dd(ImmutableSet.of("area"), null, lat(0, 9), lon());
+        Optional<DataDescriptor> merged = TailPacker.merge(tasTail, area);
+        Assert.assertTrue(merged.isPresent());
+        Assert.assertEquals(ImmutableSet.of("tas", "area"), merged.get().vars);
+        Assert.assertEquals(ImmutableSet.of("time", "lat", "lon"), merged.get().dims.keySet());
+        Assert.assertEquals(Optional.of("time"), merged.get().splitDim);
+        Assert.assertEquals(90, merged.get().dims.get("time").start);
+    }
+
+    @Test
+    public void testMergeConflictingRanges() {
+        DataDescriptor tasTail = dd(ImmutableSet.of("tas"), "time", time(90, 99), lat(0, 9), lon());
+        DataDescriptor prTail = dd(ImmutableSet.of("pr"), "time", time(80, 99), lat(0, 9), lon());
+        Assert.assertFalse(TailPacker.merge(tasTail, prTail).isPresent());
+        DataDescriptor areaPart = dd(ImmutableSet.of("area"), null, lat(5, 9), lon());
+        Assert.assertFalse(TailPacker.merge(tasTail, areaPart).isPresent());
+    }
+
+    @Test
+    public void testMergeDifferentSplitDims() {
+        DataDescriptor byTime = dd(ImmutableSet.of("tas"), "time", time(0, 99), lat(0, 9), lon());
+        DataDescriptor byLat = dd(ImmutableSet.of("pr"), "lat", time(0, 99), lat(0, 9), lon());
+        Assert.assertFalse(TailPacker.merge(byTime, byLat).isPresent());
+    }
+
+    @Test
+    public void testPack() {
+        DataDescriptor tasHead = dd(ImmutableSet.of("tas"), "time", time(0, 89), lat(0, 9), lon());
+        DataDescriptor tasTail = dd(ImmutableSet.of("tas"), "time", time(90, 99), lat(0, 9), lon());
+        DataDescriptor area = dd(ImmutableSet.of("area"), null, lat(0, 9), lon());
+        List<Pair<VariableAssignment, VariableFit>> fits = new ArrayList<>();
+        fits.add(fit(ImmutableSet.of("tas"), ImmutableSet.of(), tasHead, tasTail));
+        fits.add(fit(ImmutableSet.of(), ImmutableSet.of("area"), area));
+        VariableAlignment va = VariableAlignment.of(fits);
+        VariableAlignment packed = new TailPacker(64 * MB, CompressionEstimator.none()).pack(va);
+        Assert.assertEquals(2, packed.size());
+        List<Set<String>> blocks = new ArrayList<>();
+        for (VariableFit vf : packed.fits) {
+            for (DataDescriptor dd : vf.dataDescriptors) {
+                blocks.add(dd.vars);
+            }
+        }
+        Assert.assertEquals(2, blocks.size());
+        Assert.assertTrue(blocks.contains(ImmutableSet.of("tas")));
+        Assert.assertTrue(blocks.contains(ImmutableSet.of("tas", "area")));
+        for (int i = 0; i < packed.size(); i++) {
+            Assert.assertEquals(packed.fits.get(i).dataDescriptors.get(0).vars, packed.assignments.get(i).allVariables());
+        }
+    }
+
+    @Test
+    public void testPackConflictingTails() {
+        DataDescriptor tasTail = dd(ImmutableSet.of("tas"), "time", time(90, 99), lat(0, 9), lon());
+        DataDescriptor prTail = dd(ImmutableSet.of("pr"), "time", time(80, 99), lat(0, 9), lon());
+        List<Pair<VariableAssignment, VariableFit>> fits = new ArrayList<>();
+        fits.add(fit(ImmutableSet.of("tas"), ImmutableSet.of(), tasTail));
+        fits.add(fit(ImmutableSet.of("pr"), ImmutableSet.of(), prTail));
+        VariableAlignment va = VariableAlignment.of(fits);
+        Assert.assertSame(va, new TailPacker(64 * MB, CompressionEstimator.none()).pack(va));
+    }
+
+    @Test
+    public void testPackBeyondBlockLimit() {
+        DataDescriptor tasTail = dd(ImmutableSet.of("tas"), "time", time(90, 99), lat(0, 9), lon());
+        DataDescriptor area = dd(ImmutableSet.of("area"), null, lat(0, 9), lon());
+        long mergedSize = TailPacker.merge(tasTail, area).get().estimateSize();
+        // each tail fits on its own, but not both together
+        long blockSize = mergedSize;
+        Assert.assertTrue(tasTail.estimateSize() < blockSize - BlockFitter.ESTIMATION_MARGIN);
+        List<Pair<VariableAssignment, VariableFit>> fits = new ArrayList<>();
+        fits.add(fit(ImmutableSet.of("tas"), ImmutableSet.of(), tasTail));
+        fits.add(fit(ImmutableSet.of(), ImmutableSet.of("area"), area));
+        VariableAlignment va = VariableAlignment.of(fits);
+        Assert.assertSame(va, new TailPacker(blockSize, CompressionEstimator.none()).pack(va));
+    }
+}
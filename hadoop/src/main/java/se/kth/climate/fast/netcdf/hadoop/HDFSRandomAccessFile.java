@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.hadoop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import org.apache.hadoop.fs.FSDataInputStream;
+import ucar.unidata.io.RandomAccessFile;
+
+/**
+ * Read-only view of a single block in an HDFS file, so that CDM can read a
+ * split lazily with positioned reads, instead of from one in-memory array.
+ * <p>
+ * The stream belongs to the caller and is not closed with this.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+class HDFSRandomAccessFile extends RandomAccessFile {
+
+    private final FSDataInputStream in;
+    private final long start;
+    private final long length;
+
+    /**
+     * @param in stream of the whole file
+     * @param location name reported to CDM
+     * @param start offset of the block in the file
+     * @param length length of the block
+     * @param bufferSize how much is read from HDFS at once
+     */
+    HDFSRandomAccessFile(FSDataInputStream in, String location, long start, long length, int bufferSize) {
+        super(bufferSize);
+        this.file = null;
+        this.location = location;
+        this.in = in;
+        this.start = start;
+        this.length = length;
+    }
+
+    @Override
+    protected int read_(long pos, byte[] b, int offset, int len) throws IOException {
+        if (pos >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(len, length - pos);
+        in.readFully(start + pos, b, offset, n);
+        return n;
+    }
+
+    @Override
+    public long readToByteChannel(WritableByteChannel dest, long offset, long nbytes) throws IOException {
+        byte[] buf = new byte[(int) Math.min(nbytes, 64 * 1024)];
+        long done = 0;
+        while (done < nbytes) {
+            int n = read_(offset + done, buf, 0, (int) Math.min(buf.length, nbytes - done));
+            if (n < 0) {
+                break;
+            }
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+            while (bb.hasRemaining()) {
+                dest.write(bb);
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+}
@@ -24,7 +24,9 @@ import java.util.UUID;
 import org.apache.hadoop.io.Writable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.NetCDFUtils;
 import ucar.nc2.NetcdfFile;
+import ucar.unidata.io.RandomAccessFile;
 
 /**
  *
@@ -36,6 +38,7 @@ public class NCWritable implements Writable {
     
     private NetcdfFile ncfile = null;
     private byte[] raw = null;
+    private RandomAccessFile raf = null;
     
     public NetcdfFile get() {
         return ncfile;
@@ -43,9 +46,19 @@ public class NCWritable implements Writable {
     
     @Override
     public void write(DataOutput out) throws IOException {
-        if (ncfile == null || raw == null) {
+        if (ncfile == null || (raw == null && raf == null)) {
             throw new IOException("File is null!");
         }
+        if (raw == null) { // only read the data when it's really needed
+            long len = raf.length();
+            if (len > Integer.MAX_VALUE - 8) {
+                throw new IOException("File is too large to be serialised (" + len + "bytes)!");
+            }
+            byte[] data = new byte[(int) len];
+            raf.seek(0);
+            raf.readFully(data);
+            raw = data;
+        }
         out.writeInt(raw.length);
         out.write(raw);
         //LOG.debug("******* Wrote NCWritable (len="+raw.length+") **********");
@@ -58,7 +71,7 @@ public class NCWritable implements Writable {
             raw = new byte[len];
             in.readFully(raw);
             //LOG.debug("******* Read NCWritable (len="+raw.length+") **********");
-            ncfile = NetcdfFile.openInMemory(UUID.randomUUID().toString(), raw); // I think the location needs to be unique                   
+            ncfile = NetcdfFile.openInMemory(UUID.randomUUID().toString(), NetCDFUtils.uncompressBlock(raw)); // I think the location needs to be unique                   
         } else { 
             throw new IOException("Data for file is empty!");            
         }
@@ -72,10 +85,26 @@ public class NCWritable implements Writable {
     private NCWritable() {}
     
     public static NCWritable fromRaw(byte[] raw, String location) throws IOException {
-        NetcdfFile ncfile = NetcdfFile.openInMemory(location, raw);
+        // raw stays compressed, so that is what gets serialised
+        NetcdfFile ncfile = NetcdfFile.openInMemory(location, NetCDFUtils.uncompressBlock(raw));
         return new NCWritable(ncfile, raw);
     }
     
+    /**
+     * Open a block lazily from {@code raf}, which is kept open with the file.
+     *
+     * @param raf
+     * @param location
+     * @return
+     * @throws IOException
+     */
+    public static NCWritable fromFile(RandomAccessFile raf, String location) throws IOException {
+        NetcdfFile ncfile = NetcdfFile.open(raf, location, null, null);
+        NCWritable w = new NCWritable(ncfile, null);
+        w.raf = raf;
+        return w;
+    }
+
     public static NCWritable read(DataInput in) throws IOException {
         NCWritable w = new NCWritable();
         w.readFields(in);
@@ -18,7 +18,10 @@
 package se.kth.climate.fast.netcdf.hadoop;
 
 import com.google.common.base.Optional;
+import com.google.common.primitives.Ints;
 import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -30,6 +33,10 @@ import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.kth.climate.fast.netcdf.FlightEvents;
+import se.kth.climate.fast.netcdf.NetCDFUtils;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
 
 /**
  *
@@ -38,6 +45,12 @@ import org.slf4j.LoggerFactory;
 public class NetCDFFileReader extends RecordReader<Void, NCWritable> {
 
     static final Logger LOG = LoggerFactory.getLogger(NetCDFFileReader.class);
+    /**
+     * Larger splits are read lazily from HDFS instead of into memory.
+     */
+    public static final String MAX_BUFFERED_SPLIT = "nchdfs.maxBufferedSplit";
+    public static final long DEFAULT_MAX_BUFFERED_SPLIT = 256 * 1024 * 1024;
+    static final int READ_BUFFER = 1024 * 1024;
     // 
     private Optional<NCWritable> ncfileO = Optional.absent();
     private boolean loaded = false;
@@ -47,6 +60,7 @@ public class NetCDFFileReader extends RecordReader<Void, NCWritable> {
     @Override
     public void initialize(InputSplit is, TaskAttemptContext tac) throws IOException, InterruptedException {
         LOG.info("{}: Got split: {}", this, is);
+        long maxBuffered = tac.getConfiguration().getLong(MAX_BUFFERED_SPLIT, DEFAULT_MAX_BUFFERED_SPLIT);
         if (is instanceof FileSplit) {
             FileSplit split = (FileSplit) is;
             Path p = split.getPath();
@@ -56,25 +70,7 @@ public class NetCDFFileReader extends RecordReader<Void, NCWritable> {
             if (split.getLength() > bs) {
                 throw new IOException("NetCDF file is not appropriately block aligned! Cannot guarantee corrent read. (len=" + split.getLength() + ", bs=" + bs + ")");
             }
-            int len = (int) split.getLength(); //fstat.getLen();
-            istream = fs.open(p, (int) bs);
-            //istream.seek(split.getStart());
-            byte[] data = new byte[len];
-            istream.readFully(split.getStart(), data);
-//            int readBytes = 0;
-//            do {
-//                int res = istream.read(data, readBytes, len - readBytes);
-//                if (res > -1) {
-//                    readBytes += res;
-//                } else {
-//                    throw new IOException("End of stream reached before whole file was read!");
-//                }
-//            } while (readBytes < len);
-            //LOG.info("Read {}bytes of {}bytes with {}*4 zeroes", new Object[]{len, fstat.getLen(), arrayZeroes(data)});
-            NCWritable ncw = NCWritable.fromRaw(data, p.getName());
-            //NetcdfFile ncfile = NetcdfFile.openInMemory(p.getName(), data);
-            ncw.get().setTitle(p.getName()); // FIXME not really the right thing to put there
-            ncfileO = Optional.of(ncw);
+            ncfileO = Optional.of(load(fs, p, split.getStart(), split.getLength(), bs, maxBuffered, "file"));
             loaded = true;
             LOG.info("Using {} ({} x {})", new Object[]{split.getPath(), fstat, fs.getDefaultBlockSize(p)});
         }
@@ -84,33 +80,9 @@ public class NetCDFFileReader extends RecordReader<Void, NCWritable> {
                 Path p = split.getPath(0);
                 FileSystem fs = p.getFileSystem(tac.getConfiguration());
                 FileStatus fstat = fs.getFileStatus(p);
-                long llen = split.getLength(0);
-                if (llen <= Integer.MAX_VALUE) {
-                    int len = (int) llen;
-                    long bs = fstat.getBlockSize();
-                    istream = fs.open(p, (int) bs);
-                    //istream.seek(split.getOffset(0));
-                    byte[] data = new byte[len];
-                    istream.readFully(split.getOffset(0), data);
-//                    int readBytes = 0;
-//                    do {
-//                        int res = istream.read(data, readBytes, len - readBytes);
-//                        if (res > -1) {
-//                            readBytes += res;
-//                        } else {
-//                            throw new IOException("End of stream reached before whole file was read!");
-//                        }
-//                    } while (readBytes < len);
-                    //LOG.info("Read {}bytes of {}bytes with {}*4 zeroes", new Object[]{len, fstat.getLen(), arrayZeroes(data)});
-                    NCWritable ncw = NCWritable.fromRaw(data, p.getName());
-                    //NetcdfFile ncfile = NetcdfFile.openInMemory(p.getName(), data);
-                    ncw.get().setTitle(p.getName()); // FIXME not really the right thing to put there
-                    ncfileO = Optional.of(ncw);
-                    loaded = true;
-                    LOG.info("Using {} ({} x {})", new Object[]{split.getPath(0), fstat, fs.getDefaultBlockSize(p)});
-                } else {
-                    LOG.error("This file is too large to be buffered in memory: {} ({}bytes)", p, llen);
-                }
+                ncfileO = Optional.of(load(fs, p, split.getOffset(0), split.getLength(0), fstat.getBlockSize(), maxBuffered, "combined"));
+                loaded = true;
+                LOG.info("Using {} ({} x {})", new Object[]{split.getPath(0), fstat, fs.getDefaultBlockSize(p)});
             } else {
                 LOG.error("Only supporting single path per split for now, found {}", split.getNumPaths());
             }
@@ -119,6 +91,44 @@ public class NetCDFFileReader extends RecordReader<Void, NCWritable> {
         }
     }
 
+    /**
+     * Opens the block at {@code start} in {@code p}.
+     * <p>
+     * Blocks of up to {@code maxBuffered} bytes are read into memory at once.
+     * Larger ones are read lazily through positioned reads, unless they are
+     * compressed, since gzip can only be read from the beginning.
+     */
+    private NCWritable load(FileSystem fs, Path p, long start, long len, long bs, long maxBuffered, String kind) throws IOException {
+        FlightEvents.Span span = FlightEvents.blockRead(kind);
+        istream = fs.open(p, Ints.saturatedCast(bs));
+        NCWritable ncw;
+        long parseStart;
+        byte[] head = new byte[(int) Math.min(2, len)];
+        istream.readFully(start, head);
+        if (len > maxBuffered && !NetCDFUtils.isCompressedBlock(head)) {
+            parseStart = System.nanoTime();
+            ncw = NCWritable.fromFile(new HDFSRandomAccessFile(istream, p.getName(), start, len, READ_BUFFER), p.getName());
+        } else {
+            if (len > Integer.MAX_VALUE - 8) {
+                throw new IOException("This file is too large to be buffered in memory: " + p + " (" + len + "bytes)");
+            }
+            byte[] data = new byte[(int) len];
+            istream.readFully(start, data);
+            parseStart = System.nanoTime();
+            ncw = NCWritable.fromRaw(data, p.getName());
+        }
+        if (span.isRecording()) {
+            span.block(p.getName()).bytes(len).variables(variableNames(ncw.get()))
+                    .count(System.nanoTime() - parseStart).commit();
+        }
+        ncw.get().setTitle(p.getName()); // FIXME not really the right thing to put there
+        return ncw;
+    }
+
+    private static List<String> variableNames(NetcdfFile ncfile) {
+        return ncfile.getVariables().stream().map(Variable::getFullNameEscaped).collect(Collectors.toList());
+    }
+
 //    private long arrayZeroes(byte[] data) {
 //        long c = 0;
 //        for (int i = 0; i < data.length; i++) {
@@ -36,7 +36,7 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.climate.fast.FASTConstants;
-import se.kth.climate.fast.netcdf.NetCDFConstants;
+import se.kth.climate.fast.netcdf.NetCDFUtils;
 
 /**
  *
@@ -69,7 +69,7 @@ public abstract class NetCDFInputFormat<T> extends FileInputFormat<Void, T> {
             FileSystem fs = path.getFileSystem(job.getConfiguration());
             long length = file.getLen();
             BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0, length);
-            if (path.getName().endsWith(NetCDFConstants.SUFFIX)) { // read full file per record
+            if (NetCDFUtils.isBlock(path.getName())) { // read full file per record
                 if (blkLocations.length == 1) { // in this case we can try to collocate with the block
                     splits.add(new CombineFileSplit(new Path[]{path}, new long[]{0}, new long[]{length}, blkLocations[0].getHosts()));
                 } else { // otherwise, whatever
@@ -95,7 +95,7 @@ public abstract class NetCDFInputFormat<T> extends FileInputFormat<Void, T> {
             FileStatus fs = it.next();
             if (fs.isFile()) {
                 Path p = fs.getPath();
-                if (!p.getName().endsWith(NetCDFConstants.SUFFIX) && !p.getName().endsWith(FASTConstants.MERGED_SUFFIX)) {
+                if (!NetCDFUtils.isBlock(p.getName()) && !p.getName().endsWith(FASTConstants.MERGED_SUFFIX)) {
                     it.remove();
                 }
             }
@@ -17,6 +17,7 @@
  */
 package se.kth.climate.fast.netcdf;
 
+import com.google.common.io.Files;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
@@ -27,6 +28,7 @@ import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -40,7 +42,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.climate.fast.FASTConstants;
 import se.kth.climate.fast.netcdf.hdfs.HDFSImporter;
-import ucar.nc2.NetcdfFile;
 
 /**
  *
@@ -92,21 +93,54 @@ public class Main {
             // merge
             if (cmd.hasOption("c")) {
                 conf = conf.withValue("nchdfs.merge", ConfigValueFactory.fromAnyRef(true, "commandline argument"));
+                conf = conf.withValue("nchdfs.packTails", ConfigValueFactory.fromAnyRef(true, "commandline argument"));
+            }
+            // force
+            if (cmd.hasOption("f")) {
+                conf = conf.withValue("nchdfs.resume", ConfigValueFactory.fromAnyRef(false, "commandline argument"));
+            }
+            // direct
+            if (cmd.hasOption("d")) {
+                conf = conf.withValue("nchdfs.direct", ConfigValueFactory.fromAnyRef(true, "commandline argument"));
             }
             // split 
             if (cmd.hasOption("s")) {
                 String splitDim = cmd.getOptionValue("s");
                 conf = conf.withValue("nchdfs.splitdim", ConfigValueFactory.fromAnyRef(splitDim, "commandline argument"));
             }
+            // aggregate
+            if (cmd.hasOption("a")) {
+                conf = conf.withValue("nchdfs.aggregate", ConfigValueFactory.fromAnyRef(true, "commandline argument"));
+            }
 
-            // OPEN NetCDF files
-            NetcdfFile[] ncfiles = new NetcdfFile[files.length];
+            // PLAN ONLY
+            if (cmd.hasOption("m")) {
+                File planFile = new File(cmd.getOptionValue("m"));
+                try {
+                    ImportPlanner planner = new ImportPlanner(conf);
+                    ImportPlanner.Plan plan = planner.plan(files, title);
+                    ImportPlanner.write(plan, planFile);
+                    LOG.info("Plan complete: {} blocks, {} bytes estimated.", plan.totalBlocks(), plan.estimatedBytes());
+                } catch (IOException ex) {
+                    LOG.error("Planning failed.", ex);
+                    System.exit(1);
+                }
+                dumpMetrics(conf);
+                System.exit(0);
+            }
+
+            // SOURCES (files are only opened once their import starts)
             try {
-                for (int i = 0; i < files.length; i++) {
-                    ncfiles[i] = NetcdfFile.open(files[i].getAbsolutePath());
-                    if (ncfiles[i].getTitle() == null) {
-                        ncfiles[i].setTitle(title);
-                        ncfiles[i].setLocation(files[i].getName());
+                List<ImportSource> sources = new ArrayList<>(files.length);
+                if (conf.getBoolean("nchdfs.aggregate")) {
+                    File ncmlDir = Files.createTempDir();
+                    ncmlDir.deleteOnExit();
+                    for (Aggregation.Join join : Aggregation.group(files, conf)) {
+                        sources.add(ImportSource.of(join, ncmlDir, title));
+                    }
+                } else {
+                    for (File f : files) {
+                        sources.add(ImportSource.of(Aggregation.Join.of(f), null, title));
                     }
                 }
                 // IMPORT
@@ -121,14 +155,14 @@ public class Main {
                     if (!datasetFolder.exists()) {
                         checkOrExit(datasetFolder.mkdir(), "Could not create output folder: " + datasetFolder.getAbsolutePath());
                     }
-                    LocalImporter importer = new LocalImporter(ncfiles, conf, datasetFolder);
+                    LocalImporter importer = new LocalImporter(sources, conf, datasetFolder);
                     importer.run();
                     LOG.info("Import complete.");
                 } else if (cmd.hasOption("r")) {
                     // HDFS MODE
                     String hdfsPath = cmd.getOptionValue("r");
                     String hdfsUser = cmd.hasOption("u") ? cmd.getOptionValue("u") : System.getProperty("user.name");
-                    HDFSImporter importer = new HDFSImporter(ncfiles, conf, hdfsUser, hdfsPath);
+                    HDFSImporter importer = new HDFSImporter(sources, conf, hdfsUser, hdfsPath);
                     checkOrExit(importer.prepare(), "Connection to HDFS failed!");
                     importer.run();
                     LOG.info("Import complete.");
@@ -136,18 +170,9 @@ public class Main {
                     LOG.warn("Neither local mode nor HDFS mode specified. Exiting with nothing to do...");
                 }
 
+                dumpMetrics(conf);
             } catch (IOException ioe) {
                 LOG.error("while trying to open: " + Arrays.toString(files), ioe);
-            } finally {
-                for (int i = 0; i < files.length; i++) {
-                    if (null != ncfiles[i]) {
-                        try {
-                            ncfiles[i].close();
-                        } catch (IOException ioe) {
-                            LOG.error("while trying to close: " + files[i], ioe);
-                        }
-                    }
-                }
             }
 
         } catch (ParseException ex) {
@@ -164,12 +189,14 @@ public class Main {
         opts.addOption("l", true, "Run in local mode and place output in <arg>");
         opts.addOption("b", true, "Force block size to <arg> (Default 64MB (from config file) in local mode, or server value in HDFS mode)");
         opts.addOption("t", true, "Title to use for merged file scheme (Default is longest common prefix of source files)");
-        opts.addOption("f", false, "Force override existsing files");
-        opts.addOption("m", false, "Metadata only");
+        opts.addOption("f", false, "Force override existsing files (ignore the manifest of an earlier, interrupted import)");
+        opts.addOption("m", "plan", true, "Plan only: align the source files from their headers and write the blocks that would be imported to <arg> as JSON, without reading or writing any data");
         opts.addOption("r", true, "Write remotely into HDFS at <arg> (can not be used together with -l)");
         opts.addOption("u", true, "Write as HDFS user <arg> (use together with -r)");
         opts.addOption("c", "merge", false, "Merge (concatenate) aligned blocks into a single file that ends in " + FASTConstants.MERGED_SUFFIX + " instead of " + NetCDFConstants.SUFFIX + " (remote only, EXPERIMENTAL)");
+        opts.addOption("d", "direct", false, "Stream blocks directly into HDFS without staging them on local disk (remote only)");
         opts.addOption("s", "splitdim", true, "Treat <arg> as the variable the files are split over, even if it is not marked as unlimited.");
+        opts.addOption("a", "aggregate", false, "Join source files with the same variables along the split dimension (see -s) and align them as one dataset, so blocks can span files");
         //opts.addOption("metaformat", true, "File format for exported meta data. Options are {json, avro}");
         opts.addOption("h", "help", false, "Print help");
         return opts;
@@ -234,6 +261,19 @@ public class Main {
         return prefix;
     }
 
+    private static void dumpMetrics(Config conf) {
+        String metricsFile = conf.getString("nchdfs.metricsFile");
+        if (metricsFile.isEmpty()) {
+            LOG.info("Stage metrics:\n{}", Metrics.toJson());
+        } else {
+            try {
+                Metrics.dump(new File(metricsFile));
+            } catch (IOException ex) {
+                LOG.warn("Could not write metrics to {}", metricsFile, ex);
+            }
+        }
+    }
+
     private static void checkOrExit(boolean cond, String msg) {
         if (!cond) {
             LOG.error(msg);
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.hdfs;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Computes the checksum HDFS reports in
+ * {@link org.apache.hadoop.fs.FileSystem#getFileChecksum} while a file is
+ * written, so uploads can be verified without reading them back.
+ * <p>
+ * That is an MD5 over the MD5s of every block, which are in turn computed over
+ * the CRC32C (big endian) of every {@code bytesPerCrc} chunk in the block.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+class HDFSChecksum {
+
+    private static final HashFunction CRC32C = Hashing.crc32c();
+
+    private final int bytesPerCrc;
+    private final long blockSize;
+    private final MessageDigest fileMd5;
+    private final MessageDigest blockMd5;
+    private final byte[] crcBytes = new byte[4];
+    private final byte[] single = new byte[1];
+    private Hasher chunk;
+    private int chunkPos = 0;
+    private long blockPos = 0;
+
+    HDFSChecksum(int bytesPerCrc, long blockSize) {
+        if (blockSize % bytesPerCrc != 0) {
+            throw new IllegalArgumentException("Block size " + blockSize + " is not a multiple of " + bytesPerCrc);
+        }
+        this.bytesPerCrc = bytesPerCrc;
+        this.blockSize = blockSize;
+        try {
+            this.fileMd5 = MessageDigest.getInstance("MD5");
+            this.blockMd5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        this.chunk = CRC32C.newHasher();
+    }
+
+    void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, bytesPerCrc - chunkPos);
+            chunk.putBytes(b, off, n);
+            chunkPos += n;
+            blockPos += n;
+            off += n;
+            len -= n;
+            if (chunkPos == bytesPerCrc) {
+                finishChunk();
+                if (blockPos == blockSize) {
+                    finishBlock();
+                }
+            }
+        }
+    }
+
+    void update(int b) {
+        single[0] = (byte) b;
+        update(single, 0, 1);
+    }
+
+    /**
+     * @return the MD5 part of the HDFS file checksum
+     */
+    byte[] digest() {
+        if (chunkPos > 0) {
+            finishChunk();
+        }
+        if (blockPos > 0) {
+            finishBlock();
+        }
+        return fileMd5.digest();
+    }
+
+    private void finishChunk() {
+        int crc = chunk.hash().asInt();
+        crcBytes[0] = (byte) (crc >>> 24);
+        crcBytes[1] = (byte) (crc >>> 16);
+        crcBytes[2] = (byte) (crc >>> 8);
+        crcBytes[3] = (byte) crc;
+        blockMd5.update(crcBytes);
+        chunk = CRC32C.newHasher();
+        chunkPos = 0;
+    }
+
+    private void finishBlock() {
+        fileMd5.update(blockMd5.digest()); // digest() also resets
+        blockPos = 0;
+    }
+
+    static String hex(byte[] digest) {
+        return BaseEncoding.base16().lowerCase().encode(digest);
+    }
+
+    /**
+     * Extracts the MD5 from the serialised form of an
+     * {@code MD5MD5CRC32FileChecksum}, which ends in it.
+     */
+    static String hexFromFileChecksum(byte[] bytes) {
+        return hex(Arrays.copyOfRange(bytes, bytes.length - 16, bytes.length));
+    }
+
+    /**
+     * Checksums everything written through it and hands the result to
+     * {@code onClose} when closed.
+     */
+    static class Stream extends FilterOutputStream {
+
+        private final HDFSChecksum checksum;
+        private final Consumer<String> onClose;
+        private boolean closed = false;
+
+        Stream(OutputStream out, HDFSChecksum checksum, Consumer<String> onClose) {
+            super(out);
+            this.checksum = checksum;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            checksum.update(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            checksum.update(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!closed) {
+                closed = true;
+                onClose.accept(hex(checksum.digest()));
+            }
+        }
+    }
+}
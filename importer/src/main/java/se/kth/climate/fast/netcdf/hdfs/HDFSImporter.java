@@ -17,28 +17,26 @@
  */
 package se.kth.climate.fast.netcdf.hdfs;
 
+import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigValueFactory;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.climate.fast.common.Metadata;
 import se.kth.climate.fast.common.MetadataBuilder;
-import se.kth.climate.fast.netcdf.MetaInfo;
+import se.kth.climate.fast.netcdf.BlockManifest;
+import se.kth.climate.fast.netcdf.ImportPool;
+import se.kth.climate.fast.netcdf.Staging;
+import se.kth.climate.fast.netcdf.ImportSource;
 import se.kth.climate.fast.netcdf.NetCDFWriter;
-import se.kth.climate.fast.netcdf.aligner.AssignmentQualityMeasure;
-import se.kth.climate.fast.netcdf.aligner.BlockAligner;
-import se.kth.climate.fast.netcdf.aligner.MeasureRegister;
-import se.kth.climate.fast.netcdf.aligner.VariableAlignment;
-import se.kth.climate.fast.netcdf.metadata.MetaConverter;
-import ucar.nc2.NetcdfFile;
 
 /**
  *
@@ -48,39 +46,41 @@ public class HDFSImporter implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(HDFSImporter.class);
 
-    private final NetcdfFile[] ncfiles;
+    private final List<ImportSource> sources;
     private Config conf;
     private final HDFSSink sink;
 
-    public HDFSImporter(NetcdfFile[] ncfiles, Config conf, String hdfsUser, String hdfsUrl) {
-        this.ncfiles = ncfiles;
+    public HDFSImporter(List<ImportSource> sources, Config conf, String hdfsUser, String hdfsUrl) {
+        this.sources = sources;
         this.conf = conf;
         this.sink = HDFSSink.getBasic(hdfsUrl, hdfsUser, conf);
     }
 
     @Override
     public void run() {
-        long blockSize = conf.getBytes("nchdfs.blockSize");
-        AssignmentQualityMeasure aqm = MeasureRegister.fromConfig(conf);
+        if (conf.getBoolean("nchdfs.direct")) {
+            runDirect();
+            return;
+        }
+        BlockManifest manifest = openManifest();
+        Staging staging;
+        try {
+            staging = Staging.fromConfig(conf, null);
+        } catch (IOException ex) {
+            LOG.error("Could not set up staging.", ex);
+            throw new RuntimeException(ex);
+        }
         ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
         ListenableFuture lsF = executor.submit(sink);
-        List<Metadata> metas = new ArrayList<>(ncfiles.length);
-        NetCDFWriter writer = new NetCDFWriter();
         try {
-            for (NetcdfFile ncfile : ncfiles) {
-                LOG.info("Processing input file {}", ncfile.getLocation());
-                MetaInfo mInfo = MetaInfo.fromNetCDF(ncfile);
-                Metadata meta = MetaConverter.convert(ncfile, mInfo);
-                metas.add(meta);
-                LOG.info("Metadata for file {}:\n   {}", ncfile.getLocation(), meta);
-                BlockAligner aligner = new BlockAligner(blockSize, mInfo, aqm, conf);
-                VariableAlignment va = aligner.align();
-                LOG.info("Chosen alignment: {}", va);
-                writer.write(va, sink.progressPipe);
-                LOG.info("Finished input file: {}", ncfile.getLocation());
-            }
+            ImportPool pool = new ImportPool(conf, manifest);
+            pool.setStaging(staging);
+            List<Metadata> metas = pool.run(sources, sink.progressPipe);
             Metadata metameta = MetadataBuilder.merge(metas);
+            NetCDFWriter writer = new NetCDFWriter();
+            writer.setStaging(staging);
             writer.writeMeta(metameta, sink.progressPipe);
+            writer.writeReport(pool.report(), sink.progressPipe);
             LOG.info("Wrote Metadata.");
         } catch (IOException ex) {
             LOG.error("Error during processing.", ex);
@@ -89,10 +89,57 @@ public class HDFSImporter implements Runnable {
         sink.progressPipe.complete();
         try {
             lsF.get();
-            LOG.info("Processing of all files complete.");
+            LOG.info("Processing of all files complete. {}", sink.progressPipe.stats());
         } catch (InterruptedException | ExecutionException ex) {
             LOG.error("Error during processing.", ex);
             throw new RuntimeException(ex);
+        } finally {
+            executor.shutdown();
+            staging.close();
+        }
+    }
+
+    /**
+     * Streams blocks straight into the sink, so there is no upload queue and
+     * nothing is staged locally, except each block of a merged import while it
+     * is generated.
+     */
+    private void runDirect() {
+        BlockManifest manifest = openManifest();
+        try {
+            ImportPool pool = new ImportPool(conf, manifest);
+            List<Metadata> metas = pool.run(sources, sink);
+            Metadata metameta = MetadataBuilder.merge(metas);
+            NetCDFWriter writer = new NetCDFWriter();
+            writer.writeMeta(metameta, sink);
+            writer.writeReport(pool.report(), sink);
+            LOG.info("Wrote Metadata.");
+            sink.finish();
+            LOG.info("Processing of all files complete.");
+        } catch (IOException ex) {
+            LOG.error("Error during processing.", ex);
+            sink.close();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * The manifest of blocks already in HDFS. The sink records new blocks in
+     * it and closes it when it finishes.
+     */
+    private BlockManifest openManifest() {
+        if (conf.getBoolean("nchdfs.merge")) {
+            LOG.info("Merged imports are written as a single stream and can not be resumed.");
+            return BlockManifest.none();
+        }
+        boolean resume = conf.getBoolean("nchdfs.resume");
+        try {
+            BlockManifest manifest = BlockManifest.open(sink.manifestStore(resume), resume);
+            sink.setManifest(manifest);
+            return manifest;
+        } catch (IOException ex) {
+            LOG.error("Could not open manifest.", ex);
+            throw new RuntimeException(ex);
         }
     }
 
@@ -101,20 +148,39 @@ public class HDFSImporter implements Runnable {
             return false;
         }
 
+        String title = conf.getString("nchdfs.title");
         long blockSize;
+        Optional<Long> override = blockSizeOverride(title);
         if (conf.hasPath("nchdfs.blockSizeForced") && conf.getBoolean("nchdfs.blockSizeForced")) {
             blockSize = conf.getBytes("nchdfs.blockSize");
             LOG.info("Using block size of {} from command line.", blockSize);
+        } else if (override.isPresent()) {
+            blockSize = override.get();
+            conf = conf.withValue("nchdfs.blockSize", ConfigValueFactory.fromAnyRef(blockSize, "dataset override"));
+            LOG.info("Using block size of {} from override for dataset {}.", blockSize, title);
         } else {
             blockSize = sink.rootFolderBlockSize();
             conf = conf.withValue("nchdfs.blockSize", ConfigValueFactory.fromAnyRef(blockSize, "HDFS info"));
             LOG.info("Got block size of {} from HDFS namenode.", blockSize);
         }
         if (blockSize > 0) {
-            String title = conf.getString("nchdfs.title");
+            sink.setBlockSize(blockSize);
             return sink.createProjectFolder(title);
         } else {
             return false;
         }
     }
+
+    /**
+     * Finds the first entry in {@code nchdfs.blockSizeOverrides} whose title
+     * pattern (with * and ? wildcards) matches {@code title}.
+     */
+    private Optional<Long> blockSizeOverride(String title) {
+        for (Config override : conf.getConfigList("nchdfs.blockSizeOverrides")) {
+            if (FilenameUtils.wildcardMatch(title, override.getString("title"))) {
+                return Optional.of(override.getBytes("blockSize"));
+            }
+        }
+        return Optional.absent();
+    }
 }
@@ -17,32 +17,55 @@
  */
 package se.kth.climate.fast.netcdf.hdfs;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
-import com.google.common.primitives.Ints;
 import com.typesafe.config.Config;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.security.PrivilegedExceptionAction;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FsStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.security.UserGroupInformation;
+import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.kth.climate.fast.FASTConstants;
-import se.kth.climate.fast.netcdf.NetCDFConstants;
+import se.kth.climate.fast.netcdf.AdaptiveLimit;
+import se.kth.climate.fast.netcdf.BlockManifest;
+import se.kth.climate.fast.netcdf.BlockTarget;
+import se.kth.climate.fast.netcdf.FileNameFormat;
+import se.kth.climate.fast.netcdf.FlightEvents;
+import se.kth.climate.fast.netcdf.Metrics;
+import se.kth.climate.fast.netcdf.NetCDFUtils;
 import se.kth.climate.fast.netcdf.WorkQueue;
 
 /**
  *
  * @author Lars Kroll <lkroll@kth.se>
  */
-public class HDFSSink implements Runnable {
+public class HDFSSink implements Runnable, BlockTarget {
 
     private final static Logger LOG = LoggerFactory.getLogger(HDFSSink.class);
 
@@ -54,8 +77,20 @@ public class HDFSSink implements Runnable {
     public final String user;
     private Path projectPath;
     private final UserGroupInformation ugi;
-    private LinkedList<Path> sunkFiles;
     private final boolean concat;
+    private final int uploadThreads;
+    private final AdaptiveLimit uploads;
+    private final Object takeLock = new Object();
+    private long nextSeq = 0;
+    private FileSystem session = null;
+    private long blockSize = -1;
+    private MergedFileWriter merged = null;
+    private IOException mergedFailure = null;
+    private BlockManifest manifest = BlockManifest.none();
+    private final boolean verify;
+    private final ConcurrentHashMap<String, String> checksums = new ConcurrentHashMap<>();
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    private final ConcurrentHashMap<String, File> mergeStaged = new ConcurrentHashMap<>();
 
     public HDFSSink(Configuration hdfsConfig, String user, String root, Config conf) {
         this.hdfsConfig = hdfsConfig;
@@ -63,8 +98,15 @@ public class HDFSSink implements Runnable {
         this.rootFolder = root;
         this.hopsURL = hdfsConfig.get(HOPS_URL);
         this.ugi = UserGroupInformation.createRemoteUser(this.user);
-        this.progressPipe = new WorkQueue<>(conf.getInt("nchdfs.bufferSize"));
+        this.progressPipe = new WorkQueue<>(conf.getInt("nchdfs.bufferSize"),
+                conf.getBytes("nchdfs.bufferBytes"), File::length);
         this.concat = conf.getBoolean("nchdfs.merge");
+        this.uploadThreads = conf.getInt("nchdfs.uploadThreads");
+        this.verify = conf.getBoolean("nchdfs.verify");
+        if (uploadThreads < 1) {
+            throw new IllegalArgumentException("nchdfs.uploadThreads must be at least 1, but was " + uploadThreads);
+        }
+        this.uploads = AdaptiveLimit.fromConfig(conf, "upload", uploadThreads);
     }
 
     public static HDFSSink getBasic(String user, String hopsIp, int hopsPort, String root, Config conf) {
@@ -100,103 +142,509 @@ public class HDFSSink implements Runnable {
 
     @Override
     public void run() {
-        if (concat) {
-            sunkFiles = new LinkedList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(uploadThreads);
+        try {
+            List<Future<?>> uploads = new ArrayList<>(uploadThreads);
+            for (int i = 0; i < uploadThreads; i++) {
+                uploads.add(workers.submit(this::drain));
+            }
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+            finish();
+        } catch (InterruptedException | ExecutionException ex) {
+            LOG.error("Upload worker failed!", ex);
+            throw new RuntimeException(ex);
+        } finally {
+            workers.shutdownNow();
+            close();
         }
-        while (true) {
-            Optional<File> fo = progressPipe.take();
-            if (fo.isPresent()) {
-                File f = fo.get();
-                if (!copyFile(f)) {
-                    LOG.warn("Couldn't write {} to HDFS!", f.getAbsolutePath());
+    }
+
+    /**
+     * Completes the merged file, if any, closes the manifest and the HDFS
+     * session.
+     * <p>
+     * Called at the end of {@link #run()}, or by the importer directly when
+     * blocks were streamed in through {@link BlockTarget}.
+     */
+    public void finish() {
+        try {
+            manifest.close();
+            synchronized (this) {
+                if (mergedFailure != null) {
+                    throw new IOException("Could not create merged file", mergedFailure);
                 }
-            } else {
-                if (concat) {
-                    if (!mergeFiles()) {
-                        LOG.warn("File merge failed!");
+                List<String> uncommitted = discardMergeStaged();
+                if (merged != null && !uncommitted.isEmpty()) {
+                    merged.fail(new IOException("Blocks were never committed: " + uncommitted));
+                }
+                if (merged != null) {
+                    merged.close();
+                    LOG.info("Merged {} blocks into {}{}.", merged.blocks(), FASTConstants.MERGED_NAME, FASTConstants.MERGED_SUFFIX);
+                    merged = null;
+                    String name = FASTConstants.MERGED_NAME + FASTConstants.MERGED_SUFFIX;
+                    String checksum = checksums.remove(name);
+                    if (verify && checksum != null) {
+                        verify(projectPath.suffix(Path.SEPARATOR + name), checksum);
                     }
                 }
-                return;
             }
+            if (!failed.isEmpty()) {
+                throw new IOException(failed.size() + " files could not be uploaded or failed verification: " + failed);
+            }
+        } catch (IOException ex) {
+            LOG.error("Could not close manifest or merged file!", ex);
+            throw new RuntimeException(ex);
+        } finally {
+            close();
         }
     }
 
-    private boolean mergeFiles() {
-        try {
-            boolean result = ugi.doAs(new PrivilegedExceptionAction<Boolean>() {
+    @Override
+    public OutputStream create(String name, long size) throws IOException {
+        final Path target = projectPath.suffix(Path.SEPARATOR + name);
+        if (!NetCDFUtils.isBlock(name)) { // metadata etc.
+            return asUser(new PrivilegedExceptionAction<OutputStream>() {
                 @Override
-                public Boolean run() {
-                    try (FileSystem fs = FileSystem.get(hdfsConfig)) {
-                        Path target = HDFSSink.this.projectPath.suffix(Path.SEPARATOR + FASTConstants.MERGED_NAME + FASTConstants.MERGED_SUFFIX);
-                        if (fs.exists(target)) {
-                            if (!fs.delete(target, false)) {
-                                LOG.error("Could not remove existing file: {}", target);
-                                return false;
-                            }
-                        }
-                        Path first = sunkFiles.poll();
-                        if (first != null) {
-                            fs.rename(first, target); // mv
-                            if (!sunkFiles.isEmpty()) {
-                                fs.concat(target, sunkFiles.toArray(new Path[sunkFiles.size()]));
+                public OutputStream run() throws IOException {
+                    return fileSystem().create(target, true);
+                }
+            });
+        }
+        if (concat) {
+            return stageMerged(name);
+        }
+        final long fileBlockSize = blockSizeFor(size);
+        OutputStream os = asUser(new PrivilegedExceptionAction<OutputStream>() {
+            @Override
+            public OutputStream run() throws IOException {
+                FileSystem fs = fileSystem();
+                int bufferSize = hdfsConfig.getInt("io.file.buffer.size", 4096);
+                return fs.create(target, true, bufferSize, fs.getDefaultReplication(target), fileBlockSize);
+            }
+        });
+        return new HDFSChecksum.Stream(os, new HDFSChecksum(bytesPerCrc(), fileBlockSize),
+                (checksum) -> checksums.put(name, checksum));
+    }
+
+    /**
+     * A streamed block is first written to a local file in merge mode, so
+     * generating it doesn't hold up the merged stream for the other writers.
+     * It is appended in {@link #commit(String, long)}, once the writer has
+     * confirmed that it is complete.
+     */
+    private OutputStream stageMerged(String name) throws IOException {
+        merged(); // fail before generating the block, if there is no merged file
+        File f = File.createTempFile("merge", ".part");
+        f.deleteOnExit();
+        File old = mergeStaged.put(name, f);
+        if (old != null && !old.delete()) {
+            LOG.warn("Could not delete staged block {}", old.getAbsolutePath());
+        }
+        return new BufferedOutputStream(new FileOutputStream(f), hdfsConfig.getInt("io.file.buffer.size", 4096));
+    }
+
+    /**
+     * Removes blocks that were staged for the merged file but never
+     * committed, since their writer failed.
+     *
+     * @return their names
+     */
+    private List<String> discardMergeStaged() {
+        List<String> names = new ArrayList<>(mergeStaged.keySet());
+        for (String name : names) {
+            File f = mergeStaged.remove(name);
+            if (f != null && !f.delete()) {
+                LOG.warn("Could not delete staged block {}", f.getAbsolutePath());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The single stream all blocks are written to in merge mode, with the
+     * block size the data was aligned to.
+     * <p>
+     * If it can't be created, every later call fails too, instead of creating
+     * it for a later block while the blocks before it are missing.
+     */
+    private synchronized MergedFileWriter merged() throws IOException {
+        if (mergedFailure != null) {
+            throw new IOException("Could not create merged file", mergedFailure);
+        }
+        if (merged == null) {
+            try {
+                merged = createMerged();
+            } catch (IOException ex) {
+                mergedFailure = ex;
+                throw ex;
+            }
+        }
+        return merged;
+    }
+
+    private MergedFileWriter createMerged() throws IOException {
+        final Path target = projectPath.suffix(Path.SEPARATOR + FASTConstants.MERGED_NAME + FASTConstants.MERGED_SUFFIX);
+        final long mergedBlockSize = alignedBlockSize(target);
+        OutputStream os = asUser(new PrivilegedExceptionAction<OutputStream>() {
+            @Override
+            public OutputStream run() throws IOException {
+                FileSystem fs = fileSystem();
+                int bufferSize = hdfsConfig.getInt("io.file.buffer.size", 4096);
+                return fs.create(target, true, bufferSize, fs.getDefaultReplication(target), mergedBlockSize);
+            }
+        });
+        final String name = target.getName();
+        os = new HDFSChecksum.Stream(os, new HDFSChecksum(bytesPerCrc(), mergedBlockSize),
+                (checksum) -> checksums.put(name, checksum));
+        return new MergedFileWriter(os, mergedBlockSize);
+    }
+
+    private int bytesPerCrc() {
+        return hdfsConfig.getInt("dfs.bytes-per-checksum", 512);
+    }
+
+    /**
+     * Compares the checksum computed while writing {@code target} with the one
+     * HDFS computes from the CRCs it stores, so no data has to be read back.
+     */
+    private void verify(final Path target, String expected) throws IOException {
+        Optional<String> checksum;
+        try (Metrics.Timer t = Metrics.time("upload.verify")) {
+            checksum = hdfsChecksum(target);
+        }
+        if (!checksum.isPresent()) {
+            return;
+        }
+        String actual = checksum.get();
+        if (!actual.equals(expected)) {
+            throw new IOException("Checksum mismatch for " + target + ": wrote " + expected + ", but HDFS has " + actual);
+        }
+        LOG.debug("Verified {} ({})", target, actual);
+    }
+
+    private long alignedBlockSize(Path target) throws IOException {
+        return blockSize > 0 ? blockSize : fileSystem().getDefaultBlockSize(target);
+    }
+
+    /**
+     * Block size for a block file of {@code size} bytes.
+     * <p>
+     * Every file gets a block size of its own length (rounded up to a
+     * multiple of the checksum chunk, which HDFS requires), so it occupies
+     * exactly one block.
+     */
+    private long blockSizeFor(long size) {
+        long checksumChunk = bytesPerCrc();
+        long minBlockSize = hdfsConfig.getLong("dfs.namenode.fs-limits.min-block-size", 1024 * 1024);
+        long rounded = ((size + checksumChunk - 1) / checksumChunk) * checksumChunk;
+        return Math.max(rounded, minBlockSize);
+    }
+
+    /**
+     * Set the block size the files were aligned to.
+     */
+    void setBlockSize(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void commit(String name, long size) throws IOException {
+        File staged = concat ? mergeStaged.remove(name) : null;
+        if (staged != null) {
+            try (Metrics.Timer t = Metrics.time("upload.merged")) {
+                t.addBytes(size);
+                merged().append(-1, staged); // in the order they are committed
+            } finally {
+                if (!staged.delete()) {
+                    LOG.warn("Could not delete staged block {}", staged.getAbsolutePath());
+                }
+            }
+        } else if (!concat && NetCDFUtils.isBlock(name)) {
+            Optional<String> checksum = Optional.fromNullable(checksums.remove(name));
+            if (verify && checksum.isPresent()) {
+                verify(projectPath.suffix(Path.SEPARATOR + name), checksum.get());
+            }
+            manifest.record(name, size, checksum);
+        }
+        LOG.debug("Committed {} ({} bytes)", name, size);
+    }
+
+    /**
+     * Record completed blocks in {@code manifest}.
+     */
+    void setManifest(BlockManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * The checksum HDFS computes for {@code target}, in the form of
+     * {@link HDFSChecksum}, if it uses CRC32C with our chunk size.
+     */
+    private Optional<String> hdfsChecksum(final Path target) throws IOException {
+        FileChecksum fc = asUser(new PrivilegedExceptionAction<FileChecksum>() {
+            @Override
+            public FileChecksum run() throws IOException {
+                return fileSystem().getFileChecksum(target);
+            }
+        });
+        if (fc == null || !fc.getAlgorithmName().endsWith("-of-" + bytesPerCrc() + "CRC32C")) {
+            LOG.warn("Can't verify {}, HDFS checksum is {}", target, fc == null ? "unavailable" : fc.getAlgorithmName());
+            return Optional.absent();
+        }
+        return Optional.of(HDFSChecksum.hexFromFileChecksum(fc.getBytes()));
+    }
+
+    /**
+     * Keeps the manifest next to the blocks in the project folder, as one
+     * {@code _manifest.<timestamp>} segment per run, since HDFS files can't
+     * be reopened for writing cheaply.
+     *
+     * @param resume if {@code false} the segments of earlier runs are removed
+     * @return
+     */
+    BlockManifest.Store manifestStore(final boolean resume) {
+        return new BlockManifest.Store() {
+            @Override
+            public List<String> load() throws IOException {
+                final List<String> lines = new ArrayList<>();
+                for (Path segment : manifestSegments()) {
+                    asUser(new PrivilegedExceptionAction<Void>() {
+                        @Override
+                        public Void run() throws IOException {
+                            try (BufferedReader reader = new BufferedReader(
+                                    new InputStreamReader(fileSystem().open(segment), Charsets.UTF_8))) {
+                                String line;
+                                while ((line = reader.readLine()) != null) {
+                                    lines.add(line);
+                                }
                             }
-                            sunkFiles = null;
-                        } else {
-                            LOG.info("No files to merge.");
+                            return null;
                         }
-                        return true; // probably worked?
-                    } catch (IOException ex) {
-                        LOG.error("Could not merge files!", ex);
-                        return false;
+                    });
+                }
+                return lines;
+            }
+
+            @Override
+            public OutputStream open() throws IOException {
+                if (!resume) {
+                    for (Path segment : manifestSegments()) {
+                        fileSystem().delete(segment, false);
                     }
                 }
-            });
-            return result;
-        } catch (IOException | InterruptedException ex) {
-            LOG.error("Well shit...", ex);
-            return false;
+                final Path segment = projectPath.suffix(Path.SEPARATOR + BlockManifest.MANIFEST_NAME + "." + System.currentTimeMillis());
+                final FSDataOutputStream os = asUser(new PrivilegedExceptionAction<FSDataOutputStream>() {
+                    @Override
+                    public FSDataOutputStream run() throws IOException {
+                        return fileSystem().create(segment, true);
+                    }
+                });
+                return new FilterOutputStream(os) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        os.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        os.hflush();
+                    }
+                };
+            }
+
+            @Override
+            public long length(String name) throws IOException {
+                try {
+                    return fileSystem().getFileStatus(projectPath.suffix(Path.SEPARATOR + name)).getLen();
+                } catch (FileNotFoundException ex) {
+                    return -1;
+                }
+            }
+
+            @Override
+            public Optional<String> checksum(String name) throws IOException {
+                if (!verify) {
+                    return Optional.absent();
+                }
+                return hdfsChecksum(projectPath.suffix(Path.SEPARATOR + name));
+            }
+        };
+    }
+
+    private List<Path> manifestSegments() throws IOException {
+        final Path pattern = projectPath.suffix(Path.SEPARATOR + BlockManifest.MANIFEST_NAME + ".*");
+        FileStatus[] segments = asUser(new PrivilegedExceptionAction<FileStatus[]>() {
+            @Override
+            public FileStatus[] run() throws IOException {
+                return fileSystem().globStatus(pattern);
+            }
+        });
+        List<Path> paths = new ArrayList<>();
+        if (segments != null) {
+            for (FileStatus segment : segments) {
+                paths.add(segment.getPath());
+            }
         }
+        Collections.sort(paths); // oldest first, so newer entries win
+        return paths;
     }
 
-    private boolean copyFile(File source) {
+    private <T> T asUser(PrivilegedExceptionAction<T> action) throws IOException {
         try {
-            boolean result = ugi.doAs(new PrivilegedExceptionAction<Boolean>() {
-                @Override
-                public Boolean run() {
-                    try (FileSystem fs = FileSystem.get(hdfsConfig)) {
-                        Path target = HDFSSink.this.projectPath.suffix(Path.SEPARATOR + source.getName());
-                        fs.copyFromLocalFile(true, true, new Path(source.getAbsolutePath()), target);
-                        if (concat && source.getName().endsWith(NetCDFConstants.SUFFIX)) { // only merge .nc files!
-                            // gotta pad them out to block size
-                            FileStatus file = fs.getFileStatus(target);
-                            if (file.getLen() < file.getBlockSize()) {
-                                long diffL = file.getBlockSize() - file.getLen();
-                                int diff = Ints.checkedCast(diffL); // would be a lot of space to waste if this wouldn't fit
-                                byte[] padding = new byte[diff];
-                                Arrays.fill(padding, (byte) 0);
-                                try (OutputStream os = fs.append(target)) {
-                                    os.write(padding);
-                                }
-                            }
-                            sunkFiles.add(target);
+            return ugi.doAs(action);
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Pair<Long, Optional<File>> next = takeNext();
+            Optional<File> fo = next.getValue1();
+            if (fo.isPresent()) {
+                File f = fo.get();
+                // merged blocks are appended one at a time anyway
+                boolean gated = !(concat && NetCDFUtils.isBlock(f.getName()));
+                long size = f.length();
+                boolean ok = false;
+                if (gated) {
+                    try {
+                        uploads.acquire();
+                    } catch (InterruptedIOException ex) {
+                        // the file is already off the queue, so fail the whole
+                        // upload rather than losing the block quietly
+                        failed.add(f.getName());
+                        if (!f.delete()) {
+                            LOG.warn("Could not delete staged file {}", f.getAbsolutePath());
                         }
-                        return true; // probably worked?
-                    } catch (IOException ex) {
-                        LOG.error("Could not copy file!", ex);
-                        return false;
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted before uploading " + f.getName(), ex);
                     }
                 }
-            });
-            return result;
-        } catch (IOException | InterruptedException ex) {
-            LOG.error("Well shit...", ex);
+                try {
+                    ok = copyFile(f, next.getValue0());
+                } finally {
+                    if (gated) {
+                        uploads.release(ok ? size : 0, ok);
+                    }
+                }
+                if (!ok) {
+                    failed.add(f.getName());
+                    LOG.warn("Couldn't write {} to HDFS!", f.getAbsolutePath());
+                }
+            } else {
+                progressPipe.complete(); // pass the end marker on to the other workers
+                return;
+            }
+        }
+    }
+
+    /**
+     * Numbers files in the order they were taken from the queue, which is the
+     * order they need to be in for the merge.
+     */
+    private Pair<Long, Optional<File>> takeNext() {
+        synchronized (takeLock) {
+            Optional<File> fo = progressPipe.take();
+            long seq = nextSeq;
+            if (fo.isPresent() && NetCDFUtils.isBlock(fo.get().getName())) {
+                nextSeq++; // only blocks are numbered, the merged file waits for every number
+            }
+            return Pair.with(seq, fo);
+        }
+    }
+
+    private synchronized FileSystem fileSystem() throws IOException {
+        if (session == null) {
+            try {
+                session = ugi.doAs(new PrivilegedExceptionAction<FileSystem>() {
+                    @Override
+                    public FileSystem run() throws IOException {
+                        // not FileSystem.get(), as closing the cached instance would close it for everyone
+                        return FileSystem.newInstance(hdfsConfig);
+                    }
+                });
+                LOG.debug("Opened HDFS session to {} as {}", hopsURL, user);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+        return session;
+    }
+
+    synchronized void close() {
+        discardMergeStaged();
+        if (session != null) {
+            try {
+                session.close();
+            } catch (IOException ex) {
+                LOG.warn("Could not close HDFS session.", ex);
+            }
+            session = null;
+        }
+    }
+
+    /**
+     * @return the variables encoded in a block's file name, or none for other
+     * files
+     */
+    private static List<String> blockVariables(String name) {
+        if (!NetCDFUtils.isBlock(name)) {
+            return Collections.emptyList();
+        }
+        try {
+            return FileNameFormat.deserialise(NetCDFUtils.blockName(name)).vars;
+        } catch (IllegalArgumentException ex) {
+            return Collections.emptyList();
+        }
+    }
+
+    private boolean copyFile(File source, long seq) {
+        try {
+            long size = source.length();
+            if (concat && NetCDFUtils.isBlock(source.getName())) { // only merge blocks!
+                FlightEvents.Span span = FlightEvents.upload("merged");
+                try (Metrics.Timer t = Metrics.time("upload.merged")) {
+                    t.addBytes(size);
+                    merged().append(seq, source); // in the order they were taken from the queue
+                }
+                if (span.isRecording()) {
+                    span.block(source.getName()).bytes(size).variables(blockVariables(source.getName())).commit();
+                }
+            } else {
+                FlightEvents.Span span = FlightEvents.upload("plain");
+                try (Metrics.Timer t = Metrics.time("upload")) {
+                    t.addBytes(size);
+                    try (OutputStream os = create(source.getName(), size)) {
+                        Files.copy(source.toPath(), os);
+                    }
+                }
+                commit(source.getName(), size);
+                if (span.isRecording()) {
+                    span.block(source.getName()).bytes(size).variables(blockVariables(source.getName())).commit();
+                }
+            }
+            if (!source.delete()) {
+                LOG.warn("Could not delete staged file {}", source.getAbsolutePath());
+            }
+            return true;
+        } catch (IOException ex) {
+            LOG.error("Could not copy file!", ex);
+            // the import fails, and resuming writes the block again, so
+            // don't keep it around holding staging space
+            if (source.exists() && !source.delete()) {
+                LOG.warn("Could not delete staged file {}", source.getAbsolutePath());
+            }
             return false;
         }
     }
 
     boolean canConnect() {
         LOG.debug("Testing hdfs connection...");
-        try (FileSystem fs = FileSystem.get(hdfsConfig)) {
+        try {
+            FileSystem fs = fileSystem();
             LOG.debug("Getting status...");
             FsStatus status = fs.getStatus();
             LOG.debug("Got status: {}", status);
@@ -213,7 +661,8 @@ public class HDFSSink implements Runnable {
             boolean result = ugi.doAs(new PrivilegedExceptionAction<Boolean>() {
                 @Override
                 public Boolean run() {
-                    try (FileSystem fs = FileSystem.get(hdfsConfig)) {
+                    try {
+                        FileSystem fs = fileSystem();
                         Path p = new Path(filePath);
                         return (fs.exists(p) && fs.isDirectory(p));
                     } catch (IOException ex) {
@@ -235,7 +684,8 @@ public class HDFSSink implements Runnable {
             long result = ugi.doAs(new PrivilegedExceptionAction<Long>() {
                 @Override
                 public Long run() {
-                    try (FileSystem fs = FileSystem.get(hdfsConfig)) {
+                    try {
+                        FileSystem fs = fileSystem();
                         Path p = new Path(filePath);
                         return fs.getDefaultBlockSize(p);
                     } catch (IOException ex) {
@@ -257,7 +707,8 @@ public class HDFSSink implements Runnable {
             boolean result = ugi.doAs(new PrivilegedExceptionAction<Boolean>() {
                 @Override
                 public Boolean run() {
-                    try (FileSystem fs = FileSystem.get(hdfsConfig)) {
+                    try {
+                        FileSystem fs = fileSystem();
                         return fs.mkdirs(p);
                     } catch (IOException ex) {
                         LOG.error("Could not check root folder!");
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.hdfs;
+
+import com.google.common.io.CountingOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Assembles the merged file from its blocks in a single output stream.
+ * <p>
+ * Every block is followed by zeros up to the next block boundary, so each
+ * block of the merged file starts with a complete NetCDF file. Only one block
+ * is written at a time. If a block fails part way, the offsets of all later
+ * blocks would be wrong, so the writer is marked failed and every later call,
+ * including {@link #close()}, throws.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+class MergedFileWriter implements AutoCloseable {
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final OutputStream out;
+    private final long blockSize;
+    private long nextSeq = 0;
+    private boolean busy = false;
+    private long blocks = 0;
+    private IOException failure = null;
+
+    MergedFileWriter(OutputStream out, long blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Append a staged file as block number {@code seq}, waiting until all
+     * blocks before it have been written.
+     *
+     * @param seq negative to append it as soon as no other block is written
+     */
+    void append(long seq, File source) throws IOException {
+        acquire(seq);
+        CountingOutputStream counted = new CountingOutputStream(out); // not closed, Files.copy leaves it open
+        boolean ok = false;
+        try {
+            Files.copy(source.toPath(), counted);
+            ok = true;
+        } catch (IOException ex) {
+            fail(new IOException("Block " + seq + " (" + source.getName() + ") failed after "
+                    + counted.getCount() + " bytes", ex));
+            throw ex;
+        } finally {
+            release(counted.getCount(), ok);
+        }
+    }
+
+    private synchronized void acquire(long seq) throws IOException {
+        try {
+            while (failure == null && (busy || (seq >= 0 && seq != nextSeq))) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            // the block will never be written, so nothing after it can be
+            fail(new InterruptedIOException("Interrupted while waiting for block " + seq));
+        }
+        checkFailed();
+        busy = true;
+    }
+
+    /**
+     * Marks the merged file as incomplete, e.g. if a block was never
+     * appended.
+     */
+    synchronized void fail(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        notifyAll();
+    }
+
+    private synchronized void checkFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("Merged file is incomplete", failure);
+        }
+    }
+
+    private synchronized void release(long written, boolean ok) throws IOException {
+        try {
+            if (ok && failure == null) {
+                pad(written);
+                blocks++;
+            }
+        } catch (IOException ex) {
+            fail(ex);
+            throw ex;
+        } finally {
+            nextSeq++;
+            busy = false;
+            notifyAll();
+        }
+    }
+
+    private void pad(long written) throws IOException {
+        long remaining = (blockSize - (written % blockSize)) % blockSize;
+        while (remaining > 0) {
+            int n = (int) Math.min(remaining, ZEROS.length);
+            out.write(ZEROS, 0, n);
+            remaining -= n;
+        }
+    }
+
+    long blocks() {
+        return blocks;
+    }
+
+    /**
+     * Closes the merged stream.
+     *
+     * @throws IOException also if any block failed, since the merged file is
+     * unreadable then
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        checkFailed();
+    }
+}
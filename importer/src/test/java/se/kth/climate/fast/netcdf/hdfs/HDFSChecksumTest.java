@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf.hdfs;
+
+import org.apache.hadoop.fs.MD5MD5CRC32CastagnoliFileChecksum;
+import org.apache.hadoop.io.MD5Hash;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+@RunWith(JUnit4.class)
+public class HDFSChecksumTest {
+
+    static final int BYTES_PER_CRC = 512;
+    static final long BLOCK_SIZE = 2048;
+    // MD5-of-MD5-of-CRC32C as HDFS computes it for data(5000) with 512 bytes
+    // per CRC and 2048 byte blocks: two full blocks and one of 904 bytes,
+    // whose last chunk has only 392 bytes
+    static final String EXPECTED = "729ac8f6664d291583522acdeda0bd7f";
+
+    static byte[] data(int n) {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void multiBlockTest() {
+        byte[] data = data(5000);
+        HDFSChecksum checksum = new HDFSChecksum(BYTES_PER_CRC, BLOCK_SIZE);
+        checksum.update(data, 0, data.length);
+        Assert.assertEquals(EXPECTED, HDFSChecksum.hex(checksum.digest()));
+    }
+
+    @Test
+    public void splitWritesTest() {
+        byte[] data = data(5000);
+        HDFSChecksum checksum = new HDFSChecksum(BYTES_PER_CRC, BLOCK_SIZE);
+        // uneven pieces that cross chunk and block boundaries, plus single bytes
+        int pos = 0;
+        int step = 1;
+        while (pos < data.length) {
+            if (step % 3 == 0) {
+                checksum.update(data[pos]);
+                pos++;
+            } else {
+                int n = Math.min(step * 97, data.length - pos);
+                checksum.update(data, pos, n);
+                pos += n;
+            }
+            step++;
+        }
+        Assert.assertEquals(EXPECTED, HDFSChecksum.hex(checksum.digest()));
+    }
+
+    @Test
+    public void fileChecksumTest() {
+        byte[] data = data(5000);
+        HDFSChecksum checksum = new HDFSChecksum(BYTES_PER_CRC, BLOCK_SIZE);
+        checksum.update(data, 0, data.length);
+        byte[] digest = checksum.digest();
+        MD5MD5CRC32CastagnoliFileChecksum fc = new MD5MD5CRC32CastagnoliFileChecksum(BYTES_PER_CRC,
+                BLOCK_SIZE / BYTES_PER_CRC, new MD5Hash(digest));
+        Assert.assertEquals(EXPECTED, HDFSChecksum.hexFromFileChecksum(fc.getBytes()));
+    }
+}
@@ -26,4 +26,5 @@ public class FASTConstants {
     public static final String MERGED_NAME = "merged";
     public static final String ENC_SCHEME = "UTF-8";
     public static final String META_NAME = "metadata.json";
+    public static final String REPORT_NAME = "fill_report.json";
 }
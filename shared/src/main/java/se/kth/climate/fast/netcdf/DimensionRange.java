@@ -72,7 +72,19 @@ public class DimensionRange {
         return toRange(1);
     }
 
+    /**
+     * CDM indexes with ints, so the range has to fit, even though it can be
+     * described with longs.
+     *
+     * @param step
+     * @return
+     * @throws IllegalArgumentException if the range goes beyond
+     * {@link Integer#MAX_VALUE}
+     */
     public Range toRange(int step) {
+        if (end > Integer.MAX_VALUE || start < Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("Range " + toName() + " can't be indexed with ints.");
+        }
         try {
             return new Range((int) start, (int) end, step);
         } catch (InvalidRangeException ex) {
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Joiner;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder events for the hot paths of import and read.
+ * <p>
+ * The event types are defined at runtime through {@code jdk.jfr.EventFactory}
+ * so that the code still builds and runs on JVMs without JFR. There all spans
+ * are no-ops. Every event carries the block name, its size in bytes and the
+ * sorted variable set, so a recording can tie slow blocks to their data shape.
+ * <p>
+ * Usage:
+ * <pre>
+ * FlightEvents.Span span = FlightEvents.blockWrite("stream");
+ * ... // write the block
+ * span.block(name).bytes(size).variables(vars).commit();
+ * </pre>
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public abstract class FlightEvents {
+
+    static final Logger LOG = LoggerFactory.getLogger(FlightEvents.class);
+
+    public static final String PREFIX = "se.kth.climate.fast.";
+
+    private static final Factory ALIGN = Factory.define("Align", "Alignment",
+            "Partition enumeration and fitting of variable assignments into blocks",
+            "phase", "candidates", null);
+    private static final Factory BLOCK_WRITE = Factory.define("BlockWrite", "Block Write",
+            "Writing a single aligned NetCDF block",
+            "mode", null, null);
+    private static final Factory UPLOAD = Factory.define("Upload", "Block Upload",
+            "Copying a single block into HDFS",
+            "mode", null, null);
+    private static final Factory BLOCK_READ = Factory.define("BlockRead", "Block Read",
+            "Reading and parsing a single NetCDF block in a record reader",
+            "split", "parseTime", "NANOSECONDS");
+
+    /**
+     * @return whether events are actually emitted on this JVM
+     */
+    public static boolean isAvailable() {
+        return ALIGN != null;
+    }
+
+    /**
+     * @param phase {@code enumerate} or {@code fit}
+     * @return a started span, commit with the number of candidates as count
+     */
+    public static Span align(String phase) {
+        return Factory.begin(ALIGN, phase);
+    }
+
+    /**
+     * @param mode {@code stream} or {@code staged}
+     * @return a started span
+     */
+    public static Span blockWrite(String mode) {
+        return Factory.begin(BLOCK_WRITE, mode);
+    }
+
+    /**
+     * @param mode {@code plain} or {@code merged}
+     * @return a started span
+     */
+    public static Span upload(String mode) {
+        return Factory.begin(UPLOAD, mode);
+    }
+
+    /**
+     * @param split the kind of input split that is read
+     * @return a started span, commit with the parse time in nanoseconds as
+     * count
+     */
+    public static Span blockRead(String split) {
+        return Factory.begin(BLOCK_READ, split);
+    }
+
+    /**
+     * A started event. Fields are only transferred to the recording on
+     * {@link #commit()}, and only if a recording is interested in it.
+     */
+    public static class Span {
+
+        /**
+         * Shared by all threads while nothing is recorded, so it must not
+         * keep any state.
+         */
+        private static final Span NOOP = new Span() {
+            @Override
+            public Span block(String name) {
+                return this;
+            }
+
+            @Override
+            public Span bytes(long n) {
+                return this;
+            }
+
+            @Override
+            public Span variables(Collection<String> vars) {
+                return this;
+            }
+
+            @Override
+            public Span count(long n) {
+                return this;
+            }
+
+            @Override
+            public boolean isRecording() {
+                return false;
+            }
+        };
+
+        String block = "";
+        long bytes = 0;
+        Collection<String> variables = Collections.emptyList();
+        long count = 0;
+
+        private Span() {
+        }
+
+        public Span block(String name) {
+            this.block = name;
+            return this;
+        }
+
+        public Span bytes(long n) {
+            this.bytes = n;
+            return this;
+        }
+
+        public Span variables(Collection<String> vars) {
+            this.variables = vars;
+            return this;
+        }
+
+        public Span count(long n) {
+            this.count = n;
+            return this;
+        }
+
+        /**
+         * @return whether anything set on this span ends up in a recording,
+         * so callers can skip computing expensive fields otherwise
+         */
+        public boolean isRecording() {
+            return true;
+        }
+
+        public void commit() {
+            // nothing to record
+        }
+    }
+
+    private static class RecordedSpan extends Span {
+
+        private final Factory factory;
+        private final Object event;
+        private final String kind;
+
+        private RecordedSpan(Factory factory, Object event, String kind) {
+            this.factory = factory;
+            this.event = event;
+            this.kind = kind;
+        }
+
+        @Override
+        public void commit() {
+            factory.commit(this);
+        }
+    }
+
+    private static class Factory {
+
+        private final Object factory;
+        private final boolean hasCount;
+        private final Method newEvent;
+        private final Method begin;
+        private final Method end;
+        private final Method shouldCommit;
+        private final Method set;
+        private final Method commit;
+        private final Method isEnabled;
+
+        private Factory(Object factory, boolean hasCount) throws ReflectiveOperationException {
+            this.factory = factory;
+            this.hasCount = hasCount;
+            this.newEvent = factory.getClass().getMethod("newEvent");
+            Class<?> eventC = Class.forName("jdk.jfr.Event");
+            this.begin = eventC.getMethod("begin");
+            this.end = eventC.getMethod("end");
+            this.shouldCommit = eventC.getMethod("shouldCommit");
+            this.set = eventC.getMethod("set", int.class, Object.class);
+            this.commit = eventC.getMethod("commit");
+            this.isEnabled = eventC.getMethod("isEnabled");
+        }
+
+        /**
+         * Field layout: block, bytes, variables, kind[, count].
+         *
+         * @return {@code null} if JFR is not available
+         */
+        static Factory define(String name, String label, String description,
+                String kindField, String countField, String countTimespan) {
+            try {
+                Class<?> factoryC = Class.forName("jdk.jfr.EventFactory");
+                Class<?> annotationC = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueC = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> annotation = annotationC.getConstructor(Class.class, Object.class);
+                Constructor<?> value = valueC.getConstructor(Class.class, String.class, List.class);
+
+                List<Object> eventAnnotations = Arrays.asList(
+                        annotation.newInstance(jfr("Name"), PREFIX + name),
+                        annotation.newInstance(jfr("Label"), label),
+                        annotation.newInstance(jfr("Description"), description),
+                        annotation.newInstance(jfr("Category"), new String[]{"FAST", "NetCDF"}));
+                List<Object> fields = new ArrayList<>();
+                fields.add(value.newInstance(String.class, "block",
+                        Collections.singletonList(annotation.newInstance(jfr("Label"), "Block"))));
+                fields.add(value.newInstance(long.class, "bytes",
+                        Arrays.asList(annotation.newInstance(jfr("Label"), "Bytes"),
+                                annotation.newInstance(jfr("DataAmount"), "BYTES"))));
+                fields.add(value.newInstance(String.class, "variables",
+                        Collections.singletonList(annotation.newInstance(jfr("Label"), "Variables"))));
+                fields.add(value.newInstance(String.class, kindField,
+                        Collections.singletonList(annotation.newInstance(jfr("Label"), capitalise(kindField)))));
+                if (countField != null) {
+                    List<Object> countAnnotations = new ArrayList<>();
+                    countAnnotations.add(annotation.newInstance(jfr("Label"), capitalise(countField)));
+                    if (countTimespan != null) {
+                        countAnnotations.add(annotation.newInstance(jfr("Timespan"), countTimespan));
+                    }
+                    fields.add(value.newInstance(long.class, countField, countAnnotations));
+                }
+                Method create = factoryC.getMethod("create", List.class, List.class);
+                return new Factory(create.invoke(null, eventAnnotations, fields), countField != null);
+            } catch (ClassNotFoundException ex) {
+                LOG.debug("JFR is not available, flight events are disabled.");
+                return null;
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+                LOG.warn("Could not define flight event {}, flight events are disabled.", name, ex);
+                return null;
+            }
+        }
+
+        static Span begin(Factory f, String kind) {
+            if (f == null) {
+                return Span.NOOP;
+            }
+            try {
+                Object event = f.newEvent.invoke(f.factory);
+                if (!(Boolean) f.isEnabled.invoke(event)) {
+                    return Span.NOOP;
+                }
+                f.begin.invoke(event);
+                return new RecordedSpan(f, event, kind);
+            } catch (ReflectiveOperationException ex) {
+                LOG.debug("Could not begin flight event", ex);
+                return Span.NOOP;
+            }
+        }
+
+        void commit(RecordedSpan span) {
+            try {
+                end.invoke(span.event);
+                if ((Boolean) shouldCommit.invoke(span.event)) {
+                    set.invoke(span.event, 0, span.block);
+                    set.invoke(span.event, 1, span.bytes);
+                    set.invoke(span.event, 2, Joiner.on(',').join(new TreeSet<>(span.variables)));
+                    set.invoke(span.event, 3, span.kind);
+                    if (hasCount) {
+                        set.invoke(span.event, 4, span.count);
+                    }
+                    commit.invoke(span.event);
+                }
+            } catch (ReflectiveOperationException ex) {
+                LOG.debug("Could not commit flight event", ex);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> jfr(String annotation) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName("jdk.jfr." + annotation);
+        }
+
+        private static String capitalise(String s) {
+            return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+        }
+    }
+}
@@ -17,18 +17,28 @@
  */
 package se.kth.climate.fast.netcdf;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.math.LongMath;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ucar.ma2.Array;
 import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
 import ucar.nc2.Dimension;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
@@ -41,6 +51,8 @@ public class MetaInfo {
 
     static final Logger LOG = LoggerFactory.getLogger(MetaInfo.class);
 
+    public static final String CHUNK_SIZES = "_ChunkSizes";
+
     final Map<String, String> indices = new HashMap<>();
     final List<String> constants = new ArrayList<>();
     final Map<String, String> variable2Dimension = new HashMap<>();
@@ -49,6 +61,7 @@ public class MetaInfo {
     final HashMultimap<String, String> variableDimensionCache = HashMultimap.create();
     final Set<String> dimensionCache = new HashSet<>();
     final Map<String, VariableMapping<?, ?>> mappings;
+    private final Map<String, Array> coordinates = new ConcurrentHashMap<>();
     public final NetcdfFile ncfile;
 
     private MetaInfo(NetcdfFile ncfile, Map<String, VariableMapping<?, ?>> mappings) {
@@ -156,6 +169,123 @@ public class MetaInfo {
         return ImmutableSet.copyOf(variableDimensionCache.get(vName));
     }
 
+    /**
+     * The chunk shape of a variable in a chunked (NetCDF-4/HDF5) source, as
+     * reported by the {@code _ChunkSizes} attribute.
+     *
+     * @param v
+     * @return the chunk length for every dimension of {@code v}, or
+     * {@code null} if the variable is not chunked
+     */
+    public int[] chunkShape(Variable v) {
+        Attribute a = v.findAttribute(CHUNK_SIZES);
+        if (a == null || a.getLength() != v.getRank()) {
+            return null;
+        }
+        int[] shape = new int[a.getLength()];
+        for (int i = 0; i < shape.length; i++) {
+            shape[i] = Math.max(1, a.getNumericValue(i).intValue());
+        }
+        return shape;
+    }
+
+    /**
+     * The smallest length along {@code dimName} that is a whole number of
+     * chunks for every chunked variable using that dimension.
+     *
+     * @param dimName
+     * @return 1 if no variable is chunked along the dimension
+     */
+    public long chunkLength(String dimName) {
+        Dimension d = ncfile.findDimension(dimName);
+        if (d == null) {
+            return 1;
+        }
+        long length = 1;
+        for (Variable v : ncfile.getVariables()) {
+            int[] shape = chunkShape(v);
+            if (shape != null) {
+                int i = v.findDimensionIndex(dimName);
+                if (i >= 0) {
+                    length = LongMath.checkedMultiply(length / LongMath.gcd(length, shape[i]), shape[i]);
+                }
+            }
+        }
+        return Math.min(length, Math.max(1, d.getLength()));
+    }
+
+    /**
+     * The values of a one dimensional coordinate variable, read only once per
+     * source file and shared by all blocks.
+     *
+     * @param dimV the coordinate variable, possibly from another handle to the
+     * same file
+     * @return
+     * @throws IOException
+     */
+    public Array coordinateValues(Variable dimV) throws IOException {
+        String name = dimV.getFullNameEscaped();
+        Array data = coordinates.get(name);
+        if (data == null) {
+            synchronized (coordinates) {
+                data = coordinates.get(name);
+                if (data == null) {
+                    data = dimV.read();
+                    coordinates.put(name, data);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Hash of everything the alignment depends on: dimensions (without the
+     * length of unlimited ones), variables with their types and dimensions,
+     * and the bounds and constant classification.
+     * <p>
+     * Files with the same fingerprint only differ in the number of records,
+     * and thus get the same variable assignment.
+     *
+     * @return a hex SHA-256 digest
+     */
+    public String schemaFingerprint() {
+        return schemaFingerprint(null);
+    }
+
+    /**
+     * Like {@link #schemaFingerprint()}, but also ignores the length of
+     * {@code joinDim}, so files that only differ along it can be joined.
+     *
+     * @param joinDim may be {@code null}
+     * @return a hex SHA-256 digest
+     */
+    public String schemaFingerprint(String joinDim) {
+        Hasher h = Hashing.sha256().newHasher();
+        TreeMap<String, Dimension> dims = new TreeMap<>();
+        for (Dimension d : ncfile.getDimensions()) {
+            dims.put(d.getFullNameEscaped(), d);
+        }
+        for (Dimension d : dims.values()) {
+            h.putString("d:", Charsets.UTF_8).putString(d.getFullNameEscaped(), Charsets.UTF_8);
+            h.putInt(d.isUnlimited() || d.getFullNameEscaped().equals(joinDim) ? -1 : d.getLength());
+        }
+        TreeMap<String, Variable> vars = new TreeMap<>();
+        for (Variable v : ncfile.getVariables()) {
+            vars.put(v.getFullNameEscaped(), v);
+        }
+        for (Variable v : vars.values()) {
+            h.putString("v:", Charsets.UTF_8).putString(v.getFullNameEscaped(), Charsets.UTF_8);
+            h.putString(v.getDataType().toString(), Charsets.UTF_8);
+            h.putInt(getVarElementSize(v));
+            for (Dimension d : v.getDimensions()) {
+                h.putString(d.getFullNameEscaped(), Charsets.UTF_8).putChar(',');
+            }
+        }
+        h.putString("b:", Charsets.UTF_8).putString(new TreeMap<>(variable2Dimension).toString(), Charsets.UTF_8);
+        h.putString("c:", Charsets.UTF_8).putString(new TreeSet<>(constants).toString(), Charsets.UTF_8);
+        return h.hash().toString();
+    }
+
     public static MetaInfo fromNetCDF(NetcdfFile ncfile) {
         return MetaInfo.fromNetCDF(ncfile, new HashMap<>());
     }
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per stage timings, byte counts and latency histograms of the import
+ * pipeline.
+ * <p>
+ * Every stage is registered as an MXBean under
+ * {@code se.kth.climate.fast:type=Stage,name=<stage>} when it is first used,
+ * and all stages can be dumped as JSON at the end of a run.
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+public abstract class Metrics {
+
+    static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String DOMAIN = "se.kth.climate.fast";
+
+    private static final Map<String, Stage> STAGES = new ConcurrentSkipListMap<>();
+
+    public static Stage stage(String name) {
+        Stage s = STAGES.get(name);
+        if (s == null) {
+            synchronized (STAGES) {
+                s = STAGES.get(name);
+                if (s == null) {
+                    s = new Stage(name);
+                    register(s);
+                    STAGES.put(name, s);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Shorthand for {@code stage(name).start()}.
+     *
+     * @param name
+     * @return
+     */
+    public static Timer time(String name) {
+        return stage(name).start();
+    }
+
+    private static void register(Stage s) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(DOMAIN + ":type=Stage,name=" + ObjectName.quote(s.name));
+            if (!server.isRegistered(on)) {
+                server.registerMBean(s, on);
+            }
+        } catch (JMException ex) {
+            LOG.debug("Could not register stage {} with JMX", s.name, ex);
+        }
+    }
+
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        boolean first = true;
+        for (Stage s : STAGES.values()) {
+            if (!first) {
+                sb.append(",\n");
+            }
+            first = false;
+            sb.append("  \"");
+            sb.append(s.name);
+            sb.append("\": ");
+            s.appendJson(sb);
+        }
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    public static void dump(File f) throws IOException {
+        try (OutputStream os = new FileOutputStream(f)) {
+            os.write(toJson().getBytes(Charsets.UTF_8));
+        }
+        LOG.info("Wrote metrics to {}", f.getAbsolutePath());
+    }
+
+    public interface StageMXBean {
+
+        public long getCount();
+
+        public long getBytes();
+
+        public double getTotalSeconds();
+
+        public double getMeanMillis();
+
+        public double getMaxMillis();
+
+        public double getP50Millis();
+
+        public double getP99Millis();
+
+        public double getMegabytesPerSecond();
+    }
+
+    public static class Stage implements StageMXBean {
+
+        /**
+         * Bucket i counts latencies in [2^(i-1), 2^i) microseconds.
+         */
+        private static final int BUCKETS = 40;
+
+        public final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public Timer start() {
+            return new Timer(this);
+        }
+
+        public void record(long durationNanos, long byteCount) {
+            count.increment();
+            nanos.add(durationNanos);
+            bytes.add(byteCount);
+            long max = maxNanos.get();
+            while (durationNanos > max && !maxNanos.compareAndSet(max, durationNanos)) {
+                max = maxNanos.get();
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            histogram.incrementAndGet(bucket);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        @Override
+        public double getTotalSeconds() {
+            return nanos.sum() / 1e9;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long c = count.sum();
+            return c == 0 ? 0.0 : nanos.sum() / 1e6 / c;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentileMillis(0.5);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentileMillis(0.99);
+        }
+
+        @Override
+        public double getMegabytesPerSecond() {
+            long n = nanos.sum();
+            return n == 0 ? 0.0 : (bytes.sum() / (1024.0 * 1024.0)) / (n / 1e9);
+        }
+
+        /**
+         * @return the upper bound of the bucket the percentile falls into
+         */
+        private double percentileMillis(double p) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return (1l << i) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"count\": ").append(getCount());
+            sb.append(", \"bytes\": ").append(getBytes());
+            sb.append(", \"totalSeconds\": ").append(getTotalSeconds());
+            sb.append(", \"meanMillis\": ").append(getMeanMillis());
+            sb.append(", \"maxMillis\": ").append(getMaxMillis());
+            sb.append(", \"p50Millis\": ").append(getP50Millis());
+            sb.append(", \"p99Millis\": ").append(getP99Millis());
+            sb.append(", \"megabytesPerSecond\": ").append(getMegabytesPerSecond());
+            sb.append(", \"histogramMicros\": [");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(histogram.get(i));
+            }
+            sb.append("]}");
+        }
+    }
+
+    /**
+     * Measures one execution of a stage, from creation until closed.
+     */
+    public static class Timer implements AutoCloseable {
+
+        private final Stage stage;
+        private final long start = System.nanoTime();
+        private long bytes = 0;
+
+        private Timer(Stage stage) {
+            this.stage = stage;
+        }
+
+        public void addBytes(long n) {
+            bytes += n;
+        }
+
+        @Override
+        public void close() {
+            stage.record(System.nanoTime() - start, bytes);
+        }
+    }
+}
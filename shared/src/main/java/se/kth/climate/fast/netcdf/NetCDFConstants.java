@@ -31,4 +31,5 @@ public abstract class NetCDFConstants {
     public static final int ALIGN_SIZE = 8;
     public static final int PADDING_SIZE = 4;
     public static final String SUFFIX = ".nc";
+    public static final String COMPRESSED_SUFFIX = ".nc.gz";
 }
@@ -17,8 +17,15 @@
  */
 package se.kth.climate.fast.netcdf;
 
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
 
 /**
  *
@@ -36,4 +43,68 @@ public abstract class NetCDFUtils {
         }
         return false;
     }
+
+    /**
+     * @param fileName
+     * @return whether the file is an aligned block, compressed or not
+     */
+    public static boolean isBlock(String fileName) {
+        return fileName.endsWith(NetCDFConstants.SUFFIX) || fileName.endsWith(NetCDFConstants.COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * @param fileName of a block
+     * @return the name without the block suffix, as serialised by
+     * {@link FileNameFormat}
+     */
+    public static String blockName(String fileName) {
+        if (fileName.endsWith(NetCDFConstants.COMPRESSED_SUFFIX)) {
+            return fileName.substring(0, fileName.length() - NetCDFConstants.COMPRESSED_SUFFIX.length());
+        }
+        if (fileName.endsWith(NetCDFConstants.SUFFIX)) {
+            return fileName.substring(0, fileName.length() - NetCDFConstants.SUFFIX.length());
+        }
+        return fileName;
+    }
+
+    /**
+     * @param head at least the first two bytes of a block
+     * @return whether the block is gzip compressed
+     */
+    public static boolean isCompressedBlock(byte[] head) {
+        return head.length >= 2 && head[0] == (byte) 0x1f && head[1] == (byte) 0x8b;
+    }
+
+    /**
+     * Compressed blocks are gzip streams of a classic NetCDF file, recognised
+     * by their magic number rather than the name, as the reader of a merged
+     * file doesn't have one.
+     *
+     * @param data
+     * @return {@code data} itself if it isn't compressed, otherwise the
+     * uncompressed block
+     * @throws IOException
+     */
+    public static byte[] uncompressBlock(byte[] data) throws IOException {
+        if (!isCompressedBlock(data)) {
+            return data;
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data), 64 * 1024)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    /**
+     * Rough size of the data in a file, computed from the header only.
+     * <p>
+     * @param ncfile
+     * @return the sum of all variable sizes in bytes
+     */
+    public static long estimateDataSize(NetcdfFile ncfile) {
+        long size = 0;
+        for (Variable v : ncfile.getVariables()) {
+            size += v.getSize() * v.getElementSize();
+        }
+        return size;
+    }
 }
@@ -18,32 +18,81 @@
 package se.kth.climate.fast.netcdf;
 
 import com.google.common.base.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
 
 /**
+ * Bounded hand-over queue between the writers and a sink.
+ * <p>
+ * The queue is bounded by the number of items and, optionally, by the total
+ * weight (e.g. bytes) of the items in it. An item heavier than the whole
+ * budget is still accepted when the queue is otherwise empty. Time spent
+ * blocking in {@link #put} and {@link #take} is recorded, to tell whether the
+ * producers or the consumers are the bottleneck.
  *
  * @author Lars Kroll <lkroll@kth.se>
  */
 public class WorkQueue<T> {
 
-    private final BlockingQueue<QueueValue<T>> pipe;
+    private final Queue<QueueValue<T>> pipe;
+    private final int capacity;
+    private final long weightBudget;
+    private final ToLongFunction<T> weigher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private long weight = 0;
+    private long putStallNanos = 0;
+    private long takeStallNanos = 0;
+    private int maxDepth = 0;
 
     public WorkQueue(int bufferSize) {
-        pipe = new ArrayBlockingQueue<>(bufferSize);
+        this(bufferSize, Long.MAX_VALUE, (v) -> 0);
     }
 
-    public void put(T value) {
-        try {
-            pipe.put(new Value(value));
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+    /**
+     * @param bufferSize maximum number of items in the queue
+     * @param weightBudget maximum total weight of the items in the queue
+     * @param weigher weight of a single item, e.g. {@code File::length}
+     */
+    public WorkQueue(int bufferSize, long weightBudget, ToLongFunction<T> weigher) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1, but was " + bufferSize);
+        }
+        if (weightBudget < 1) {
+            throw new IllegalArgumentException("Weight budget must be at least 1, but was " + weightBudget);
         }
+        this.pipe = new ArrayDeque<>(bufferSize);
+        this.capacity = bufferSize;
+        this.weightBudget = weightBudget;
+        this.weigher = weigher;
+    }
+
+    public void put(T value) {
+        Value v = new Value(value, weigher.applyAsLong(value));
+        enqueue(v);
     }
 
     public Optional<T> take() {
+        lock.lock();
         try {
-            QueueValue<T> v = pipe.take();
+            long stall = 0;
+            if (pipe.isEmpty()) {
+                long start = System.nanoTime();
+                while (pipe.isEmpty()) {
+                    notEmpty.await();
+                }
+                stall = System.nanoTime() - start;
+                takeStallNanos += stall;
+            }
+            QueueValue<T> v = pipe.poll();
+            Metrics.stage("queue.take").record(stall, v.weight());
+            weight -= v.weight();
+            notFull.signalAll();
             if (v.isComplete()) {
                 return Optional.absent();
             } else {
@@ -51,14 +100,112 @@ public class WorkQueue<T> {
             }
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            lock.unlock();
         }
     }
-    
+
     public void complete() {
+        enqueue(new Complete());
+    }
+
+    private void enqueue(QueueValue<T> v) {
+        lock.lock();
         try {
-            pipe.put(new Complete());
+            long stall = 0;
+            if (!fits(v)) {
+                long start = System.nanoTime();
+                while (!fits(v)) {
+                    notFull.await();
+                }
+                stall = System.nanoTime() - start;
+                putStallNanos += stall;
+            }
+            pipe.add(v);
+            Metrics.stage("queue.put").record(stall, v.weight());
+            weight += v.weight();
+            maxDepth = Math.max(maxDepth, pipe.size());
+            notEmpty.signal();
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(QueueValue<T> v) {
+        if (pipe.size() >= capacity) {
+            return false;
+        }
+        return weight == 0 || v.weight() == 0 || weight + v.weight() <= weightBudget;
+    }
+
+    /**
+     * @return number of items currently queued
+     */
+    public int depth() {
+        lock.lock();
+        try {
+            return pipe.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total weight of the items currently queued
+     */
+    public long weight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total time producers were blocked in {@link #put}
+     */
+    public long putStall(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(putStallNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total time consumers were blocked in {@link #take}
+     */
+    public long takeStall(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(takeStallNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("WorkQueue(depth=");
+            sb.append(pipe.size());
+            sb.append(", maxDepth=");
+            sb.append(maxDepth);
+            sb.append(", weight=");
+            sb.append(weight);
+            sb.append(", putStall=");
+            sb.append(TimeUnit.NANOSECONDS.toMillis(putStallNanos));
+            sb.append("ms, takeStall=");
+            sb.append(TimeUnit.NANOSECONDS.toMillis(takeStallNanos));
+            sb.append("ms)");
+            return sb.toString();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -67,6 +214,8 @@ public class WorkQueue<T> {
         T get();
 
         boolean isComplete();
+
+        long weight();
     }
 
     class Complete implements QueueValue<T> {
@@ -81,14 +230,21 @@ public class WorkQueue<T> {
             return true;
         }
 
+        @Override
+        public long weight() {
+            return 0;
+        }
+
     }
 
     class Value implements QueueValue<T> {
 
         private final T value;
+        private final long weight;
 
-        Value(T value) {
+        Value(T value, long weight) {
             this.value = value;
+            this.weight = weight;
         }
 
         @Override
@@ -101,5 +257,10 @@ public class WorkQueue<T> {
             return false;
         }
 
+        @Override
+        public long weight() {
+            return weight;
+        }
+
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 KTH Royal Institute of Technology
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package se.kth.climate.fast.netcdf;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ *
+ * @author Lars Kroll <lkroll@kth.se>
+ */
+@RunWith(JUnit4.class)
+public class WorkQueueTest {
+
+    @Test
+    public void testWeightBudget() throws InterruptedException {
+        final WorkQueue<Long> q = new WorkQueue<>(10, 100, (v) -> v);
+        q.put(60l);
+        Assert.assertEquals(60, q.weight());
+        final CountDownLatch putDone = new CountDownLatch(1);
+        final AtomicLong putNanos = new AtomicLong();
+        Thread producer = new Thread(() -> {
+            long start = System.nanoTime();
+            q.put(50l); // would exceed the budget
+            putNanos.set(System.nanoTime() - start);
+            putDone.countDown();
+        });
+        producer.start();
+        Assert.assertFalse(putDone.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, q.depth());
+        Assert.assertEquals(60l, (long) q.take().get());
+        Assert.assertTrue(putDone.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(50, q.weight());
+        // the stall can't be compared to the await above, as the producer may
+        // only have started waiting part way through it
+        long stall = q.putStall(TimeUnit.NANOSECONDS);
+        Assert.assertTrue(stall > 0);
+        Assert.assertTrue(stall <= putNanos.get());
+        producer.join();
+    }
+
+    @Test
+    public void testOversizedItem() {
+        WorkQueue<Long> q = new WorkQueue<>(10, 100, (v) -> v);
+        q.put(500l); // heavier than the whole budget, but the queue is empty
+        q.complete();
+        Assert.assertEquals(2, q.depth());
+        Assert.assertEquals(500l, (long) q.take().get());
+        Assert.assertFalse(q.take().isPresent());
+        Assert.assertEquals(0, q.weight());
+    }
+}